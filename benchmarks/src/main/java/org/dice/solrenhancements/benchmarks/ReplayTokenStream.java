@@ -0,0 +1,74 @@
+package org.dice.solrenhancements.benchmarks;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * A token stream replaying tokens generated up front, so that benchmarking the filters on top of it doesn't measure
+ * a tokenizer as well. Replaying a token allocates nothing, and the same stream replays any number of token lists.
+ */
+public final class ReplayTokenStream extends TokenStream {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+    private Tokens tokens;
+    private int next = 0;
+
+    /**
+     * A list of tokens, with their position increments and payloads
+     */
+    public static final class Tokens {
+        private final String[] terms;
+        private final int[] positionIncrements;
+        private final BytesRef[] payloads;
+
+        /**
+         * @param positionIncrements the position increments, 0 for a synonym of the previous token
+         * @param payloads the payloads, or null for none
+         */
+        public Tokens(String[] terms, int[] positionIncrements, BytesRef[] payloads) {
+            this.terms = terms;
+            this.positionIncrements = positionIncrements;
+            this.payloads = payloads;
+        }
+
+        public int size() {
+            return terms.length;
+        }
+    }
+
+    /**
+     * Sets the tokens replayed from the next reset
+     */
+    public void setTokens(Tokens tokens) {
+        this.tokens = tokens;
+    }
+
+    @Override
+    public boolean incrementToken() {
+        if (next == tokens.terms.length) {
+            return false;
+        }
+        clearAttributes();
+        termAtt.append(tokens.terms[next]);
+        posIncAtt.setPositionIncrement(tokens.positionIncrements[next]);
+        if (tokens.payloads != null) {
+            payloadAtt.setPayload(tokens.payloads[next]);
+        }
+        next++;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        next = 0;
+    }
+}
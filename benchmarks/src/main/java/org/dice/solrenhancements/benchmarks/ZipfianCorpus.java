@@ -0,0 +1,77 @@
+package org.dice.solrenhancements.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic text whose word frequencies follow a Zipf distribution, as natural language roughly does.
+ *
+ * The word of rank r (from 1) is drawn with a probability proportional to 1 / r^exponent. The words are the ranks
+ * in base 36 behind a "w", so frequent words are short ones, and the same seed always generates the same text.
+ */
+public final class ZipfianCorpus {
+
+    private final String[] words;
+    // the cumulative probability of the words up to each rank
+    private final double[] cumulative;
+    private final Random random;
+
+    /**
+     * @param vocabularySize the number of distinct words
+     * @param exponent the skew of the distribution, around 1 for natural language
+     * @param seed the seed of the random generator
+     */
+    public ZipfianCorpus(int vocabularySize, double exponent, long seed) {
+        this.words = new String[vocabularySize];
+        this.cumulative = new double[vocabularySize];
+        double total = 0.0;
+        for (int i = 0; i < vocabularySize; i++) {
+            words[i] = "w" + Integer.toString(i + 1, Character.MAX_RADIX);
+            total += 1.0 / Math.pow(i + 1, exponent);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < vocabularySize; i++) {
+            cumulative[i] /= total;
+        }
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return the rank of a random word, from 0 for the most frequent
+     */
+    public int nextRank() {
+        final double p = random.nextDouble();
+        int lo = 0;
+        int hi = cumulative.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < p) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public String nextWord() {
+        return words[nextRank()];
+    }
+
+    /**
+     * @return numWords random words separated by spaces
+     */
+    public String nextText(int numWords) {
+        StringBuilder sb = new StringBuilder(numWords * 5);
+        for (int i = 0; i < numWords; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(nextWord());
+        }
+        return sb.toString();
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+}
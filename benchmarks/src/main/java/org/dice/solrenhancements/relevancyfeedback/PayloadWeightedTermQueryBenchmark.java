@@ -0,0 +1,157 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queries.payloads.AveragePayloadFunction;
+import org.apache.lucene.queries.payloads.PayloadScoreQuery;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.dice.solrenhancements.benchmarks.ZipfianCorpus;
+import org.dice.solrenhancements.tokenfilters.MeanPayloadTokenFilterFactory;
+import org.dice.solrenhancements.tokenfilters.PayloadCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks searching for the top 10 docs with the RF query of a payload weighted field over a synthetic Zipfian
+ * corpus in a RAMDirectory, indexed with MeanPayloadTokenFilter. The PayloadWeightedTermQuery clauses RFQuery builds
+ * are compared against the PayloadScoreQuery(SpanTermQuery) clauses it built before, scored with a similarity that
+ * decodes the payloads the same way, by maximum terms per field.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadWeightedTermQueryBenchmark {
+
+    private static final String PAYLOAD_FIELD = "skills";
+
+    private static final int NUM_DOCS = 50000;
+    private static final int WORDS_PER_DOC = 20;
+    private static final int NUM_SEEDS = 10;
+    private static final int NUM_HITS = 10;
+    private static final int VOCABULARY_SIZE = 5000;
+    private static final double ZIPF_EXPONENT = 1.0;
+    private static final long SEED = 42L;
+
+    @Param({"10", "25", "100"})
+    public int maxQueryTermsPerField;
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    private Query payloadWeightedTermQuery;
+    private Query payloadScoreQuery;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final ZipfianCorpus corpus = new ZipfianCorpus(VOCABULARY_SIZE, ZIPF_EXPONENT, SEED);
+        final Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                final Tokenizer tokenizer = new WhitespaceTokenizer();
+                TokenStream stream = new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder());
+                stream = new MeanPayloadTokenFilterFactory(new HashMap<String, String>()).create(stream);
+                return new TokenStreamComponents(tokenizer, stream);
+            }
+        };
+
+        directory = new RAMDirectory();
+        FieldType withPayloadTermVectors = new FieldType(TextField.TYPE_NOT_STORED);
+        withPayloadTermVectors.setStoreTermVectors(true);
+        withPayloadTermVectors.setStoreTermVectorPositions(true);
+        withPayloadTermVectors.setStoreTermVectorPayloads(true);
+        withPayloadTermVectors.freeze();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+        try {
+            for (int i = 0; i < NUM_DOCS; i++) {
+                StringBuilder text = new StringBuilder();
+                for (int word = 0; word < WORDS_PER_DOC; word++) {
+                    text.append(corpus.nextWord()).append('|').append(corpus.getRandom().nextFloat()).append(' ');
+                }
+                Document document = new Document();
+                document.add(new Field(PAYLOAD_FIELD, text.toString(), withPayloadTermVectors));
+                writer.addDocument(document);
+            }
+        } finally {
+            writer.close();
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        // PayloadScoreQuery takes the payloads from the similarity
+        searcher.setSimilarity(new ClassicSimilarity() {
+            @Override
+            public float scorePayload(int doc, int start, int end, BytesRef payload) {
+                return payload == null ? 1.0f : PayloadCodec.decode(payload, PayloadCodec.DEFAULT_SCALE);
+            }
+        });
+
+        List<Integer> seeds = new ArrayList<Integer>(NUM_SEEDS);
+        for (int i = 0; i < NUM_SEEDS; i++) {
+            seeds.add(corpus.getRandom().nextInt(NUM_DOCS));
+        }
+
+        RelevancyFeedback relevancyFeedback = new RelevancyFeedback(reader);
+        relevancyFeedback.setAnalyzer(analyzer);
+        relevancyFeedback.setFieldNames(new String[]{PAYLOAD_FIELD});
+        relevancyFeedback.setPayloadFields(new String[]{PAYLOAD_FIELD});
+        relevancyFeedback.setMaxQueryTermsPerField(maxQueryTermsPerField);
+        relevancyFeedback.setBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setStreamBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setMm(RelevancyFeedback.DEFAULT_MM);
+        RFQuery rfQuery = relevancyFeedback.like(seeds);
+        payloadWeightedTermQuery = rfQuery.getOrQuery();
+        payloadScoreQuery = toPayloadScoreQuery(rfQuery);
+    }
+
+    /**
+     * @return the query RFQuery.getOrQuery built for payload terms before PayloadWeightedTermQuery
+     */
+    private static Query toPayloadScoreQuery(RFQuery rfQuery) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (RFTerm rfTerm : rfQuery.getRFTerms()) {
+            Query payloadQuery = new PayloadScoreQuery(new SpanTermQuery(rfTerm.getTerm()), new AveragePayloadFunction(), false);
+            builder.add(new BoostQuery(payloadQuery, rfTerm.getFinalScore()), BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public TopDocs payloadWeightedTermQuery() throws IOException {
+        return searcher.search(payloadWeightedTermQuery, NUM_HITS);
+    }
+
+    @Benchmark
+    public TopDocs payloadScoreQuery() throws IOException {
+        return searcher.search(payloadScoreQuery, NUM_HITS);
+    }
+}
@@ -0,0 +1,161 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.dice.solrenhancements.benchmarks.ZipfianCorpus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the steps of building a RelevancyFeedback query over a synthetic Zipfian corpus in a RAMDirectory:
+ * extracting the terms of the seed documents, selecting the most interesting terms, building the boolean query,
+ * and the whole of like() from seed documents and from a content stream.
+ *
+ * Each field is indexed twice with the same text, with term vectors and stored only, and termSource picks which
+ * of the two the terms are extracted from (the stored fields are re-analyzed). It has no effect on likeReader,
+ * which always analyzes the stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelevancyFeedbackBenchmark {
+
+    private static final String TERM_VECTORS = "termvectors";
+    private static final String STORED = "stored";
+
+    private static final int NUM_DOCS = 10000;
+    private static final int MAX_FIELDS = 3;
+    private static final int WORDS_PER_FIELD = 250;
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final double ZIPF_EXPONENT = 1.0;
+    private static final long SEED = 42L;
+
+    @Param({"1", "10", "50"})
+    public int numSeeds;
+
+    @Param({"1", "3"})
+    public int numFields;
+
+    @Param({"25", "100"})
+    public int maxQueryTermsPerField;
+
+    @Param({TERM_VECTORS, STORED})
+    public String termSource;
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private RelevancyFeedback relevancyFeedback;
+    private String[] fieldNames;
+    private List<Integer> seeds;
+    private String streamText;
+
+    // the inputs of the steps after the first
+    private Map<String, TermWeightMap> seedTerms;
+    private RFQuery rfQuery;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final ZipfianCorpus corpus = new ZipfianCorpus(VOCABULARY_SIZE, ZIPF_EXPONENT, SEED);
+        final Analyzer analyzer = new WhitespaceAnalyzer();
+
+        directory = new RAMDirectory();
+        FieldType withTermVectors = new FieldType(TextField.TYPE_STORED);
+        withTermVectors.setStoreTermVectors(true);
+        withTermVectors.freeze();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+        try {
+            for (int i = 0; i < NUM_DOCS; i++) {
+                Document document = new Document();
+                for (int field = 0; field < MAX_FIELDS; field++) {
+                    final String text = corpus.nextText(WORDS_PER_FIELD);
+                    document.add(new Field(fieldName(TERM_VECTORS, field), text, withTermVectors));
+                    document.add(new Field(fieldName(STORED, field), text, TextField.TYPE_STORED));
+                }
+                writer.addDocument(document);
+            }
+        } finally {
+            writer.close();
+        }
+        reader = DirectoryReader.open(directory);
+
+        fieldNames = new String[numFields];
+        for (int field = 0; field < numFields; field++) {
+            fieldNames[field] = fieldName(termSource, field);
+        }
+        relevancyFeedback = new RelevancyFeedback(reader);
+        relevancyFeedback.setAnalyzer(analyzer);
+        relevancyFeedback.setFieldNames(fieldNames);
+        relevancyFeedback.setStreamBodyfieldNames(fieldNames);
+        relevancyFeedback.setMaxQueryTermsPerField(maxQueryTermsPerField);
+        // as RFHelper does for a request without rf.qf, rf.stream.qf or rf.mm
+        relevancyFeedback.setBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setStreamBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setMm(RelevancyFeedback.DEFAULT_MM);
+
+        Set<Integer> seedSet = new LinkedHashSet<Integer>();
+        while (seedSet.size() < numSeeds) {
+            seedSet.add(corpus.getRandom().nextInt(NUM_DOCS));
+        }
+        seeds = new ArrayList<Integer>(seedSet);
+        streamText = corpus.nextText(WORDS_PER_FIELD * numSeeds);
+
+        seedTerms = retrieveTerms();
+        rfQuery = relevancyFeedback.like(seeds);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private static String fieldName(String termSource, int field) {
+        return termSource + "_body" + field;
+    }
+
+    @Benchmark
+    public Map<String, TermWeightMap> retrieveTerms() throws IOException {
+        Map<String, TermWeightMap> fieldTermFreq = new HashMap<String, TermWeightMap>();
+        for (Integer seed : seeds) {
+            relevancyFeedback.retrieveTerms(seed, fieldNames, fieldTermFreq);
+        }
+        return fieldTermFreq;
+    }
+
+    @Benchmark
+    public RFQuery getMostInterestingTerms() throws IOException {
+        return relevancyFeedback.buildQueryFromFieldTermFrequencies(seedTerms, false);
+    }
+
+    @Benchmark
+    public Query getOrQuery() {
+        return rfQuery.getOrQuery();
+    }
+
+    @Benchmark
+    public RFQuery likeDocs() throws IOException {
+        return relevancyFeedback.like(seeds);
+    }
+
+    @Benchmark
+    public RFQuery likeReader() throws IOException {
+        return relevancyFeedback.like(new StringReader(streamText));
+    }
+}
@@ -0,0 +1,130 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.dice.solrenhancements.benchmarks.ZipfianCorpus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks searching for the top 10 docs with the RF query of the text fields over a synthetic Zipfian corpus in
+ * a RAMDirectory, as the BooleanQuery of RFQuery.getOrQuery (the default) against the term at a time
+ * WeightedTermsQuery of rf.querytype=weighted, by number of fields, maximum terms per field and minimum should match.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeightedTermsQueryBenchmark {
+
+    private static final int NUM_DOCS = 50000;
+    private static final int MAX_FIELDS = 5;
+    private static final int WORDS_PER_FIELD = 50;
+    private static final int NUM_SEEDS = 10;
+    private static final int NUM_HITS = 10;
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final double ZIPF_EXPONENT = 1.0;
+    private static final long SEED = 42L;
+
+    @Param({"1", "5"})
+    public int numFields;
+
+    @Param({"25", "100"})
+    public int maxQueryTermsPerField;
+
+    @Param({"1", "10%"})
+    public String mm;
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    private Query booleanQuery;
+    private Query weightedTermsQuery;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final ZipfianCorpus corpus = new ZipfianCorpus(VOCABULARY_SIZE, ZIPF_EXPONENT, SEED);
+        final Analyzer analyzer = new WhitespaceAnalyzer();
+
+        directory = new RAMDirectory();
+        FieldType withTermVectors = new FieldType(TextField.TYPE_NOT_STORED);
+        withTermVectors.setStoreTermVectors(true);
+        withTermVectors.freeze();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+        try {
+            for (int i = 0; i < NUM_DOCS; i++) {
+                Document document = new Document();
+                for (int field = 0; field < MAX_FIELDS; field++) {
+                    document.add(new Field(fieldName(field), corpus.nextText(WORDS_PER_FIELD), withTermVectors));
+                }
+                writer.addDocument(document);
+            }
+        } finally {
+            writer.close();
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new ClassicSimilarity());
+
+        List<Integer> seeds = new ArrayList<Integer>(NUM_SEEDS);
+        for (int i = 0; i < NUM_SEEDS; i++) {
+            seeds.add(corpus.getRandom().nextInt(NUM_DOCS));
+        }
+
+        String[] fieldNames = new String[numFields];
+        for (int field = 0; field < numFields; field++) {
+            fieldNames[field] = fieldName(field);
+        }
+        RelevancyFeedback relevancyFeedback = new RelevancyFeedback(reader);
+        relevancyFeedback.setAnalyzer(analyzer);
+        relevancyFeedback.setFieldNames(fieldNames);
+        relevancyFeedback.setMaxQueryTermsPerField(maxQueryTermsPerField);
+        relevancyFeedback.setBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setStreamBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setMm(mm);
+        RFQuery rfQuery = relevancyFeedback.like(seeds);
+        booleanQuery = rfQuery.getOrQuery();
+        weightedTermsQuery = rfQuery.getWeightedTermsQuery();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private static String fieldName(int field) {
+        return "body" + field;
+    }
+
+    @Benchmark
+    public TopDocs booleanQuery() throws IOException {
+        return searcher.search(booleanQuery, NUM_HITS);
+    }
+
+    @Benchmark
+    public TopDocs weightedTermsQuery() throws IOException {
+        return searcher.search(weightedTermsQuery, NUM_HITS);
+    }
+}
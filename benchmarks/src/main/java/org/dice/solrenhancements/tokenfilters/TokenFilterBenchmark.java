@@ -0,0 +1,182 @@
+package org.dice.solrenhancements.tokenfilters;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.util.BytesRef;
+import org.dice.solrenhancements.benchmarks.ReplayTokenStream;
+import org.dice.solrenhancements.benchmarks.ZipfianCorpus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the throughput of the token filters, each created by its factory over token streams generated up front
+ * from a Zipfian vocabulary. Each operation is an input token, so the scores are tokens per second, and running
+ * with the GC profiler (-prof gc) reports the bytes allocated per token as gc.alloc.rate.norm.
+ *
+ * The single token filters run on short weighted text fields, the payload filters on long weighted streams with
+ * repeated terms, and the concatenation on short titles, with and without a synonym at every position.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenFilterBenchmark {
+
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final double ZIPF_EXPONENT = 1.0;
+    private static final long SEED = 42L;
+
+    // short text fields, with a payload per token
+    private static final int NUM_FIELDS = 100;
+    private static final int FIELD_TOKENS = 100;
+    private static final int FIELD_OPS = NUM_FIELDS * FIELD_TOKENS;
+
+    // long payload streams, the terms repeating with different weights
+    private static final int NUM_STREAMS = 10;
+    private static final int STREAM_TOKENS = 1000;
+    private static final int STREAM_OPS = NUM_STREAMS * STREAM_TOKENS;
+
+    // titles to concatenate, with no synonyms or with SYNONYMS synonyms at every position
+    private static final int NUM_TITLES = 500;
+    private static final int TITLE_POSITIONS = 4;
+    private static final int SYNONYMS = 2;
+    private static final int TITLE_OPS = NUM_TITLES * TITLE_POSITIONS;
+    private static final int SYNONYM_TITLE_OPS = NUM_TITLES * TITLE_POSITIONS * (1 + SYNONYMS);
+
+    private final ReplayTokenStream source = new ReplayTokenStream();
+
+    private ReplayTokenStream.Tokens[] fields;
+    private ReplayTokenStream.Tokens[] streams;
+    private ReplayTokenStream.Tokens[] titles;
+    private ReplayTokenStream.Tokens[] synonymTitles;
+
+    private TokenStream constant;
+    private TokenStream typeErase;
+    private TokenStream payloadQueryBoost;
+    private TokenStream meanPayload;
+    private TokenStream topPayloads;
+    private TokenStream concatenate;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final ZipfianCorpus corpus = new ZipfianCorpus(VOCABULARY_SIZE, ZIPF_EXPONENT, SEED);
+        fields = new ReplayTokenStream.Tokens[NUM_FIELDS];
+        for (int i = 0; i < NUM_FIELDS; i++) {
+            fields[i] = generate(corpus, FIELD_TOKENS, 0, true);
+        }
+        streams = new ReplayTokenStream.Tokens[NUM_STREAMS];
+        for (int i = 0; i < NUM_STREAMS; i++) {
+            streams[i] = generate(corpus, STREAM_TOKENS, 0, true);
+        }
+        titles = new ReplayTokenStream.Tokens[NUM_TITLES];
+        synonymTitles = new ReplayTokenStream.Tokens[NUM_TITLES];
+        for (int i = 0; i < NUM_TITLES; i++) {
+            titles[i] = generate(corpus, TITLE_POSITIONS, 0, false);
+            synonymTitles[i] = generate(corpus, TITLE_POSITIONS, SYNONYMS, false);
+        }
+
+        Map<String, String> constantArgs = new HashMap<String, String>();
+        constantArgs.put("token", "constant");
+        constant = new ConstantTokenFilterFactory(constantArgs).create(source);
+        typeErase = new TypeEraseFilterFactory(new HashMap<String, String>()).create(source);
+        payloadQueryBoost = new PayloadQueryBoostTokenFilterFactory(new HashMap<String, String>()).create(source);
+        meanPayload = new MeanPayloadTokenFilterFactory(new HashMap<String, String>()).create(source);
+        Map<String, String> topPayloadsArgs = new HashMap<String, String>();
+        topPayloadsArgs.put("maxTokens", "50");
+        topPayloads = new TopPayloadsTokenFilterFactory(topPayloadsArgs).create(
+                new MeanPayloadTokenFilterFactory(new HashMap<String, String>()).create(source));
+        concatenate = new ConcatenateTokenFilterFactory(new HashMap<String, String>()).create(source);
+    }
+
+    /**
+     * @param numPositions the number of positions
+     * @param numSynonyms the number of synonyms at each position
+     * @param payloads whether to add a random float payload to each token
+     */
+    private static ReplayTokenStream.Tokens generate(ZipfianCorpus corpus, int numPositions, int numSynonyms, boolean payloads) {
+        final int numTokens = numPositions * (1 + numSynonyms);
+        String[] terms = new String[numTokens];
+        int[] positionIncrements = new int[numTokens];
+        BytesRef[] tokenPayloads = payloads ? new BytesRef[numTokens] : null;
+        int token = 0;
+        for (int position = 0; position < numPositions; position++) {
+            for (int synonym = 0; synonym <= numSynonyms; synonym++) {
+                terms[token] = corpus.nextWord();
+                positionIncrements[token] = synonym == 0 ? 1 : 0;
+                if (payloads) {
+                    tokenPayloads[token] = new BytesRef(PayloadHelper.encodeFloat(corpus.getRandom().nextFloat()));
+                }
+                token++;
+            }
+        }
+        return new ReplayTokenStream.Tokens(terms, positionIncrements, tokenPayloads);
+    }
+
+    /**
+     * Runs each list of tokens through the filters
+     *
+     * @return the number of tokens the filters emitted
+     */
+    private int consume(TokenStream filters, ReplayTokenStream.Tokens[] inputs) throws IOException {
+        int numTokens = 0;
+        for (ReplayTokenStream.Tokens tokens : inputs) {
+            source.setTokens(tokens);
+            filters.reset();
+            while (filters.incrementToken()) {
+                numTokens++;
+            }
+            filters.end();
+            filters.close();
+        }
+        return numTokens;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIELD_OPS)
+    public int constantTokenFilter() throws IOException {
+        return consume(constant, fields);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIELD_OPS)
+    public int typeEraseFilter() throws IOException {
+        return consume(typeErase, fields);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIELD_OPS)
+    public int payloadQueryBoostTokenFilter() throws IOException {
+        return consume(payloadQueryBoost, fields);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM_OPS)
+    public int meanPayloadTokenFilter() throws IOException {
+        return consume(meanPayload, streams);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM_OPS)
+    public int topPayloadsTokenFilter() throws IOException {
+        return consume(topPayloads, streams);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TITLE_OPS)
+    public int concatenateTokenFilter() throws IOException {
+        return consume(concatenate, titles);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SYNONYM_TITLE_OPS)
+    public int concatenateTokenFilterSynonyms() throws IOException {
+        return consume(concatenate, synonymTitles);
+    }
+}
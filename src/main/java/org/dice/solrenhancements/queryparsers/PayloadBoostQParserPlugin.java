@@ -0,0 +1,128 @@
+package org.dice.solrenhancements.queryparsers;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.DisMaxParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.SolrPluginUtils;
+import org.dice.solrenhancements.tokenfilters.PayloadCodec;
+
+import java.io.IOException;
+
+/**
+ * Builds a weighted term query from text analyzed into tokens with float payloads, e.g. {!payloadboost f=skills}java.
+ *
+ * The text is run through the query analyzer of the field f (or df), and each token with a non zero payload becomes
+ * a SHOULD BoostQuery(TermQuery) clause weighted by the decoded payload. This replaces analyzing the text with a
+ * PayloadQueryBoostTokenFilter into "term^weight" text to be parsed again by edismax: there is no formatting and
+ * re-parsing of every weight, and weights that would be printed in scientific notation are kept rather than dropped.
+ * The analyzer should produce the payloads but not end with PayloadQueryBoostTokenFilter. The optional mm parameter
+ * sets the minimum number of clauses to match, and the optional scale parameter is the scale of quantized payloads
+ * (see PayloadCodec).
+ */
+public class PayloadBoostQParserPlugin extends QParserPlugin {
+
+    public static final String NAME = "payloadboost";
+    public static final String SCALE = "scale";
+
+    @Override
+    public void init(NamedList args) {
+    }
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new QParser(qstr, localParams, params, req) {
+            @Override
+            public Query parse() throws SyntaxError {
+                String field = getParam(QueryParsing.F);
+                if (field == null) {
+                    field = getParam(CommonParams.DF);
+                }
+                if (field == null) {
+                    throw new SyntaxError("The " + NAME + " query parser requires a field: " + QueryParsing.F);
+                }
+                final Analyzer analyzer = req.getSchema().getFieldType(field).getQueryAnalyzer();
+                return buildQuery(analyzer, field, qstr, parseScale(getParam(SCALE)), getParam(DisMaxParams.MM));
+            }
+        };
+    }
+
+    /**
+     * @return the payload scale, or the default scale if not set
+     */
+    static float parseScale(String scale) throws SyntaxError {
+        if (scale == null) {
+            return PayloadCodec.DEFAULT_SCALE;
+        }
+        final float payloadScale;
+        try {
+            payloadScale = Float.parseFloat(scale);
+        } catch (NumberFormatException e) {
+            throw new SyntaxError("The " + NAME + " query parser's " + SCALE + " is not a number: " + scale, e);
+        }
+        if (!(payloadScale > 0.0f) || Float.isInfinite(payloadScale)) {
+            throw new SyntaxError("The " + NAME + " query parser's " + SCALE + " must be positive: " + scale);
+        }
+        return payloadScale;
+    }
+
+    /**
+     * @param mm the minimum number of clauses to match, or null for any
+     * @return the weighted term query for the payloads of the text analyzed for the field
+     */
+    static Query buildQuery(Analyzer analyzer, String field, String text, float payloadScale, String mm) {
+        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
+        if (text != null) {
+            addWeightedTerms(qryBuilder, analyzer, field, text, payloadScale);
+        }
+        if (mm != null) {
+            SolrPluginUtils.setMinShouldMatch(qryBuilder, mm);
+        }
+        return qryBuilder.build();
+    }
+
+    private static void addWeightedTerms(BooleanQuery.Builder qryBuilder, Analyzer analyzer, String field, String text, float payloadScale) {
+        TokenStream ts = analyzer.tokenStream(field, text);
+        try {
+            TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+            PayloadAttribute payloadAtt = ts.addAttribute(PayloadAttribute.class);
+
+            ts.reset();
+            while (ts.incrementToken()) {
+                final BytesRef payload = payloadAtt.getPayload();
+                if (payload == null) {
+                    continue;
+                }
+                final float weight = PayloadCodec.decode(payload, payloadScale);
+                if (weight == 0.0f) {
+                    continue;
+                }
+                TermQuery tq = new TermQuery(new Term(field, BytesRef.deepCopyOf(termAtt.getBytesRef())));
+                qryBuilder.add(new BoostQuery(tq, weight), BooleanClause.Occur.SHOULD);
+            }
+            ts.end();
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error analyzing " + field + ": " + text, e);
+        } finally {
+            IOUtils.closeWhileHandlingException(ts);
+        }
+    }
+}
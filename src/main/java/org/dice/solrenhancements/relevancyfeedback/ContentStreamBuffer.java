@@ -0,0 +1,92 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads a content stream once for several consumers (e.g. one analyzer per stream.body.fl field).
+ *
+ * The stream is pulled in chunks only as far as the furthest consumer has read, and the chars read are kept so the
+ * other consumers can replay them. As the analysis of each field stops after the token limit, a long document is
+ * only read as far as needed. At most maxChars chars are ever read, the rest of the stream is ignored.
+ *
+ * Not thread safe, the readers must be consumed from a single thread.
+ */
+final class ContentStreamBuffer {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Reader in;
+    private final int maxChars;
+    private char[] buffer = new char[0];
+    private int length = 0;
+    private boolean exhausted = false;
+
+    /**
+     * @param in the content stream
+     * @param maxChars the maximum number of chars to read from the stream
+     */
+    ContentStreamBuffer(Reader in, int maxChars) {
+        this.in = in;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * @return a reader over the stream from its start
+     */
+    Reader newReader() {
+        return new Reader() {
+            private int pos = 0;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (pos >= length && !fill()) {
+                    return -1;
+                }
+                final int n = Math.min(len, length - pos);
+                System.arraycopy(buffer, pos, cbuf, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+                // the stream is closed by its owner
+            }
+        };
+    }
+
+    /**
+     * Reads the next chunk of the stream into the buffer
+     *
+     * @return false if there is nothing more to read
+     */
+    private boolean fill() throws IOException {
+        if (exhausted) {
+            return false;
+        }
+        final int chunk = Math.min(CHUNK_SIZE, maxChars - length);
+        if (chunk <= 0) {
+            exhausted = true;
+            return false;
+        }
+        if (buffer.length < length + chunk) {
+            // grow geometrically, but never past the budget
+            final long size = Math.min((long) maxChars, ArrayUtil.oversize(length + chunk, Character.BYTES));
+            buffer = Arrays.copyOf(buffer, (int) size);
+        }
+        final int read = in.read(buffer, length, chunk);
+        if (read < 0) {
+            exhausted = true;
+            return false;
+        }
+        length += read;
+        return true;
+    }
+}
@@ -0,0 +1,352 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.PerFieldSimilarityWrapper;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Top-k search for a {@link WeightedTermsQuery} with MaxScore dynamic pruning (Turtle and Flood).
+ *
+ * Each term gets an upper bound on the score it can add to a document in the segment: its score at the largest
+ * possible term frequency (totalTermFreq - docFreq + 1) in the document with the largest norm. The terms with the
+ * lowest bounds whose bounds sum to no more than the current k-th best score are non-essential: a document matching
+ * only those cannot make the top k. Documents are only enumerated from the postings of the essential terms, and the
+ * non-essential terms are only checked for a document while it can still beat the k-th best score.
+ *
+ * The scores are the same as those of the query, but as pruned documents are never fully scored the number of
+ * matches returned is a lower bound. This relies on a TF-IDF similarity, where the score grows with the term
+ * frequency and the norm, and the coord factor is at most 1, so it is only used for a TFIDFSimilarity.
+ */
+final class MaxScoreTopDocs {
+
+    // inflate the bounds, so float rounding in the sums never prunes a competitive document
+    private static final float BOUND_SLACK = 1.0001f;
+
+    // the doc with the largest norm for each field, by segment core, evicted when the core is closed. Norms don't
+    // change for a segment core
+    private static final ConcurrentHashMap<Object, Map<String, Integer>> maxNormDocs =
+            new ConcurrentHashMap<Object, Map<String, Integer>>();
+
+    private MaxScoreTopDocs() {
+    }
+
+    /**
+     * Finds the top scoring documents for the query
+     *
+     * @param acceptDocs the top level docids that may be returned, or null to accept all the live docs
+     * @param numHits the number of documents to return
+     * @return the top documents, or null if the query can't be pruned with the searcher's similarity
+     */
+    static TopDocs search(IndexSearcher searcher, WeightedTermsQuery query, Bits acceptDocs, int numHits) throws IOException {
+        if (numHits <= 0) {
+            return null;
+        }
+        final Similarity similarity = searcher.getSimilarity(true);
+        for (int i = 0; i < query.getTerms().length; i++) {
+            if (!(fieldSimilarity(similarity, query.getTerms()[i].field()) instanceof TFIDFSimilarity)
+                    || query.getWeights()[i] <= 0.0f) {
+                return null;
+            }
+        }
+
+        final WeightedTermsQuery.WeightedTermsWeight weight =
+                (WeightedTermsQuery.WeightedTermsWeight) searcher.createNormalizedWeight(query, true);
+        final ScoreDocQueue pq = new ScoreDocQueue(numHits);
+        int totalHits = 0;
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            totalHits += searchLeaf(leaf, query, weight, acceptDocs, pq);
+        }
+
+        // pop the sentinels left in the queue, then the hits lowest first
+        final ScoreDoc[] results = new ScoreDoc[Math.min(totalHits, numHits)];
+        for (int i = pq.size() - results.length; i > 0; i--) {
+            pq.pop();
+        }
+        for (int i = results.length - 1; i >= 0; i--) {
+            results[i] = pq.pop();
+        }
+        final float maxScore = results.length == 0 ? Float.NaN : results[0].score;
+        return new TopDocs(totalHits, results, maxScore);
+    }
+
+    /**
+     * Collects the competitive documents of the segment into the queue
+     *
+     * @return the number of documents fully scored
+     */
+    private static int searchLeaf(LeafReaderContext leaf, WeightedTermsQuery query, WeightedTermsQuery.WeightedTermsWeight weight,
+                                  Bits acceptDocs, ScoreDocQueue pq) throws IOException {
+        final LeafReader reader = leaf.reader();
+        final Bits liveDocs = reader.getLiveDocs();
+        final Term[] terms = query.getTerms();
+        final int minShouldMatch = Math.max(1, query.getMinimumNumberShouldMatch());
+
+        // the terms in the segment, with their score bounds
+        final List<TermPostings> segmentTerms = new ArrayList<TermPostings>(terms.length);
+        for (int i = 0; i < terms.length; i++) {
+            final TermsEnum termsEnum = weight.termsEnum(leaf, i);
+            if (termsEnum == null) {
+                continue;
+            }
+            final long freqBound = termsEnum.totalTermFreq() == -1 ? 1 : termsEnum.totalTermFreq() - termsEnum.docFreq() + 1;
+            final Similarity.SimScorer simScorer = weight.similarity.simScorer(weight.stats[i], leaf);
+            final int maxNormDoc = getMaxNormDoc(reader, terms[i].field(),
+                    (TFIDFSimilarity) fieldSimilarity(weight.similarity, terms[i].field()));
+            final PostingsEnum postings = termsEnum.postings(null, PostingsEnum.FREQS);
+            postings.nextDoc();
+            segmentTerms.add(new TermPostings(postings, simScorer, simScorer.score(maxNormDoc, freqBound)));
+        }
+        final int n = segmentTerms.size();
+        if (n == 0) {
+            return 0;
+        }
+
+        // lowest bound first, bounds[t] is the sum of the bounds of the t lowest
+        Collections.sort(segmentTerms);
+        final TermPostings[] sorted = segmentTerms.toArray(new TermPostings[n]);
+        final float[] bounds = new float[n + 1];
+        for (int t = 0; t < n; t++) {
+            bounds[t + 1] = bounds[t] + sorted[t].bound;
+        }
+
+        ScoreDoc bottom = pq.top();
+        int firstEssential = firstEssential(bounds, bottom.score);
+        EssentialHeap essential = new EssentialHeap(sorted, firstEssential);
+        int hits = 0;
+        while (essential.size() > 0) {
+            final int doc = essential.topDoc();
+            if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                break;
+            }
+            final boolean accepted = (liveDocs == null || liveDocs.get(doc))
+                    && (acceptDocs == null || acceptDocs.get(leaf.docBase + doc));
+
+            float score = 0.0f;
+            int overlap = 0;
+            while (essential.size() > 0 && essential.topDoc() == doc) {
+                final TermPostings top = essential.top();
+                if (accepted) {
+                    score += top.simScorer.score(doc, top.postings.freq());
+                    overlap++;
+                }
+                top.postings.nextDoc();
+                essential.updateTop();
+            }
+            if (!accepted) {
+                continue;
+            }
+
+            // the non-essential terms, highest bound first, while the doc can still make the top k
+            boolean competitive = true;
+            for (int t = firstEssential - 1; t >= 0; t--) {
+                if ((score + bounds[t + 1]) * BOUND_SLACK <= bottom.score) {
+                    competitive = false;
+                    break;
+                }
+                final PostingsEnum postings = sorted[t].postings;
+                if (postings.docID() < doc) {
+                    postings.advance(doc);
+                }
+                if (postings.docID() == doc) {
+                    score += sorted[t].simScorer.score(doc, postings.freq());
+                    overlap++;
+                }
+            }
+            if (!competitive || overlap < minShouldMatch) {
+                continue;
+            }
+
+            hits++;
+            final float docScore = score * weight.coords[overlap];
+            // docs are visited in order, so a tie with the bottom is never competitive
+            if (docScore > bottom.score) {
+                bottom.doc = leaf.docBase + doc;
+                bottom.score = docScore;
+                bottom = pq.updateTop();
+
+                final int newFirstEssential = firstEssential(bounds, bottom.score);
+                if (newFirstEssential != firstEssential) {
+                    firstEssential = newFirstEssential;
+                    essential = new EssentialHeap(sorted, firstEssential);
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of lowest bound terms that can't lift a document above the threshold on their own
+     */
+    private static int firstEssential(float[] bounds, float threshold) {
+        int first = 0;
+        while (first < bounds.length - 1 && bounds[first + 1] * BOUND_SLACK <= threshold) {
+            first++;
+        }
+        return first;
+    }
+
+    private static Similarity fieldSimilarity(Similarity similarity, String field) {
+        if (similarity instanceof PerFieldSimilarityWrapper) {
+            return ((PerFieldSimilarityWrapper) similarity).get(field);
+        }
+        return similarity;
+    }
+
+    /**
+     * @return a doc with the largest norm value for the field in the segment
+     */
+    /**
+     * @return whether the docs with the largest norms are cached for the segment core
+     */
+    static boolean hasMaxNormDocs(Object coreKey) {
+        return maxNormDocs.containsKey(coreKey);
+    }
+
+    private static int getMaxNormDoc(LeafReader reader, String field, TFIDFSimilarity similarity) throws IOException {
+        final Object coreKey = reader.getCoreCacheKey();
+        Map<String, Integer> fieldDocs = maxNormDocs.get(coreKey);
+        if (fieldDocs == null) {
+            final Map<String, Integer> newFieldDocs = new HashMap<String, Integer>();
+            fieldDocs = maxNormDocs.putIfAbsent(coreKey, newFieldDocs);
+            if (fieldDocs == null) {
+                fieldDocs = newFieldDocs;
+                reader.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+                    @Override
+                    public void onClose(Object ownerCoreCacheKey) {
+                        maxNormDocs.remove(ownerCoreCacheKey);
+                    }
+                });
+            }
+        }
+        synchronized (fieldDocs) {
+            Integer maxNormDoc = fieldDocs.get(field);
+            if (maxNormDoc == null) {
+                maxNormDoc = 0;
+                final NumericDocValues norms = reader.getNormValues(field);
+                if (norms != null) {
+                    float maxNorm = Float.NEGATIVE_INFINITY;
+                    for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                        final float norm = similarity.decodeNormValue(norms.get(doc));
+                        if (norm > maxNorm) {
+                            maxNorm = norm;
+                            maxNormDoc = doc;
+                        }
+                    }
+                }
+                fieldDocs.put(field, maxNormDoc);
+            }
+            return maxNormDoc;
+        }
+    }
+
+    /**
+     * The top hits, lowest first, filled with sentinels that any hit beats (as Lucene's package-private HitQueue)
+     */
+    private static final class ScoreDocQueue extends PriorityQueue<ScoreDoc> {
+
+        ScoreDocQueue(int numHits) {
+            super(numHits, true);
+        }
+
+        @Override
+        protected ScoreDoc getSentinelObject() {
+            return new ScoreDoc(Integer.MAX_VALUE, Float.NEGATIVE_INFINITY);
+        }
+
+        @Override
+        protected boolean lessThan(ScoreDoc hitA, ScoreDoc hitB) {
+            if (hitA.score == hitB.score) {
+                return hitA.doc > hitB.doc;
+            }
+            return hitA.score < hitB.score;
+        }
+    }
+
+    private static final class TermPostings implements Comparable<TermPostings> {
+        final PostingsEnum postings;
+        final Similarity.SimScorer simScorer;
+        final float bound;
+
+        TermPostings(PostingsEnum postings, Similarity.SimScorer simScorer, float bound) {
+            this.postings = postings;
+            this.simScorer = simScorer;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(TermPostings other) {
+            return Float.compare(bound, other.bound);
+        }
+    }
+
+    /**
+     * Min-heap of the essential terms by their current docid
+     */
+    private static final class EssentialHeap {
+        private final TermPostings[] heap;
+        private int size = 0;
+
+        EssentialHeap(TermPostings[] sorted, int firstEssential) {
+            heap = new TermPostings[sorted.length - firstEssential];
+            for (int t = firstEssential; t < sorted.length; t++) {
+                if (sorted[t].postings.docID() != DocIdSetIterator.NO_MORE_DOCS) {
+                    heap[size++] = sorted[t];
+                }
+            }
+            for (int i = (size >>> 1) - 1; i >= 0; i--) {
+                downHeap(i);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        TermPostings top() {
+            return heap[0];
+        }
+
+        int topDoc() {
+            return heap[0].postings.docID();
+        }
+
+        /**
+         * Restores the heap after the top has moved on, dropping it once exhausted
+         */
+        void updateTop() {
+            if (heap[0].postings.docID() == DocIdSetIterator.NO_MORE_DOCS) {
+                heap[0] = heap[--size];
+                heap[size] = null;
+            }
+            if (size > 0) {
+                downHeap(0);
+            }
+        }
+
+        private void downHeap(int i) {
+            final TermPostings node = heap[i];
+            final int doc = node.postings.docID();
+            int child = 2 * i + 1;
+            while (child < size) {
+                if (child + 1 < size && heap[child + 1].postings.docID() < heap[child].postings.docID()) {
+                    child++;
+                }
+                if (heap[child].postings.docID() >= doc) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+                child = 2 * i + 1;
+            }
+            heap[i] = node;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of direct (off heap) byte buffer pages, that entries of up to a page are written to.
+ *
+ * Each page in use is carved into chunks of one size class, from 64 bytes up to the whole page, each class 1.25 times
+ * the size of the one before it, so an entry wastes at most a fifth of its chunk. An entry is addressed by a
+ * {@link Slot}, its page and offset. Pages are allocated as needed up to the maximum and are never released, but a page
+ * whose chunks have all been freed goes back to the pool, to be carved up for any size class.
+ *
+ * When no page is left for an entry's size class, the entries of the next page in use, in turn, are handed back to the
+ * owner to be evicted, much as memcached reassigns slabs between its size classes.
+ */
+final class OffHeapPages {
+
+    static final int DEFAULT_PAGE_SIZE = 1 << 20;
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private final int pageSize;
+    private final int maxPages;
+    private final int[] chunkSizes;
+    private final List<Page> pages = new ArrayList<Page>();
+    private final ArrayDeque<Page> freePages = new ArrayDeque<Page>();
+    // the pages of each size class with a free chunk
+    private final ArrayDeque<Page>[] partialPages;
+    private int victimCursor = 0;
+    private long usedBytes = 0;
+
+    /**
+     * @param maxBytes the maximum size of the pages, at least one page is allocated
+     * @param pageSize the size of each page, and so of the largest entry
+     */
+    @SuppressWarnings("unchecked")
+    OffHeapPages(long maxBytes, int pageSize) {
+        this.pageSize = pageSize;
+        this.maxPages = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / pageSize));
+        List<Integer> sizes = new ArrayList<Integer>();
+        int size = Math.min(MIN_CHUNK_SIZE, pageSize);
+        while (size < pageSize) {
+            sizes.add(size);
+            // grow by a quarter, rounded up to a multiple of 8 bytes
+            size = Math.min(pageSize, ((size + size / 4) + 7) & ~7);
+        }
+        sizes.add(pageSize);
+        this.chunkSizes = new int[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+        }
+        this.partialPages = new ArrayDeque[chunkSizes.length];
+        for (int i = 0; i < partialPages.length; i++) {
+            partialPages[i] = new ArrayDeque<Page>();
+        }
+    }
+
+    /**
+     * Takes a chunk for an entry of the given length.
+     *
+     * @param owner the key the entry is cached under, handed back as a victim if its page is needed for another entry
+     * @param victims the slots to evict if no page is left, after which the allocation can be retried
+     * @return the slot to write the entry to, or null if the entry is larger than a page or no page is left
+     */
+    synchronized Slot allocate(int length, Object owner, List<Slot> victims) {
+        final int sizeClass = sizeClass(length);
+        if (sizeClass < 0) {
+            return null;
+        }
+        Page page = partialPages[sizeClass].peekFirst();
+        if (page == null) {
+            page = freePages.pollFirst();
+            if (page == null && pages.size() < maxPages) {
+                page = new Page(pages.size(), ByteBuffer.allocateDirect(pageSize));
+                pages.add(page);
+            }
+            if (page == null) {
+                addVictims(victims);
+                return null;
+            }
+            page.carve(sizeClass, chunkSizes[sizeClass], pageSize / chunkSizes[sizeClass]);
+            partialPages[sizeClass].addFirst(page);
+        }
+
+        final int chunk = page.freeChunks[--page.numFree];
+        if (page.numFree == 0) {
+            partialPages[sizeClass].removeFirst();
+        }
+        final Slot slot = new Slot(page.index, chunk, chunk * page.chunkSize, length, page.chunkSize, owner);
+        page.slots[chunk] = slot;
+        usedBytes += page.chunkSize;
+        return slot;
+    }
+
+    /**
+     * Returns the slot's chunk to its page, once it has been released by all its readers
+     */
+    synchronized void free(Slot slot) {
+        final Page page = pages.get(slot.page);
+        if (page.slots[slot.chunk] != slot) {
+            return;
+        }
+        page.slots[slot.chunk] = null;
+        page.freeChunks[page.numFree++] = slot.chunk;
+        usedBytes -= page.chunkSize;
+        if (page.numFree == page.slots.length) {
+            // the page is empty, so it can be carved up for any size class
+            if (page.slots.length > 1) {
+                partialPages[page.sizeClass].remove(page);
+            }
+            page.sizeClass = -1;
+            freePages.addLast(page);
+        } else if (page.numFree == 1) {
+            partialPages[page.sizeClass].addLast(page);
+        }
+    }
+
+    void write(Slot slot, byte[] bytes) {
+        final ByteBuffer buffer = buffer(slot).duplicate();
+        buffer.position(slot.offset);
+        buffer.put(bytes, 0, slot.length);
+    }
+
+    byte[] read(Slot slot) {
+        final ByteBuffer buffer = buffer(slot).duplicate();
+        buffer.position(slot.offset);
+        final byte[] bytes = new byte[slot.length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the size of the pages allocated so far
+     */
+    synchronized long getAllocatedBytes() {
+        return (long) pages.size() * pageSize;
+    }
+
+    /**
+     * @return the size of the chunks in use
+     */
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    int getMaxEntryLength() {
+        return pageSize;
+    }
+
+    private synchronized ByteBuffer buffer(Slot slot) {
+        return pages.get(slot.page).buffer;
+    }
+
+    private int sizeClass(int length) {
+        for (int i = 0; i < chunkSizes.length; i++) {
+            if (length <= chunkSizes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addVictims(List<Slot> victims) {
+        for (int i = 0; i < pages.size(); i++) {
+            final Page page = pages.get(victimCursor);
+            victimCursor = (victimCursor + 1) % pages.size();
+            if (page.sizeClass < 0) {
+                continue;
+            }
+            for (Slot slot : page.slots) {
+                if (slot != null) {
+                    victims.add(slot);
+                }
+            }
+            return;
+        }
+    }
+
+    private static final class Page {
+        private final int index;
+        private final ByteBuffer buffer;
+        private int sizeClass = -1;
+        private int chunkSize;
+        private Slot[] slots;
+        private int[] freeChunks;
+        private int numFree;
+
+        private Page(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        private void carve(int sizeClass, int chunkSize, int numChunks) {
+            this.sizeClass = sizeClass;
+            this.chunkSize = chunkSize;
+            this.slots = new Slot[numChunks];
+            this.freeChunks = new int[numChunks];
+            // hand out the chunks from the start of the page
+            for (int i = 0; i < numChunks; i++) {
+                freeChunks[i] = numChunks - 1 - i;
+            }
+            this.numFree = numChunks;
+        }
+    }
+
+    /**
+     * The page and offset of an entry. It starts with one reference, held by the cache, and readers retain it while
+     * they copy the entry out, so its chunk is only freed and reused once nobody can still be reading it.
+     */
+    static final class Slot {
+        final int page;
+        final int chunk;
+        final int offset;
+        final int length;
+        final int chunkSize;
+        final Object owner;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Slot(int page, int chunk, int offset, int length, int chunkSize, Object owner) {
+            this.page = page;
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.owner = owner;
+        }
+
+        /**
+         * @return false if the slot has already been released by all its holders, and so must not be read
+         */
+        boolean retain() {
+            while (true) {
+                final int count = refs.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if this was the last reference, so the chunk is to be freed
+         */
+        boolean release() {
+            return refs.decrementAndGet() == 0;
+        }
+    }
+}
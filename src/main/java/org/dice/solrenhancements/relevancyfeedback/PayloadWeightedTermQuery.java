@@ -0,0 +1,190 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+import org.dice.solrenhancements.tokenfilters.PayloadCodec;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Scores the documents matching a term by the term's payload in the document, times the query boost.
+ *
+ * A lightweight replacement for PayloadScoreQuery(SpanTermQuery) with an AveragePayloadFunction and no span score,
+ * for the RF terms of payload fields. The payload is read straight from the term's postings with no spans, and
+ * decoded as when the RF terms are extracted, as a float or a quantized weight (see PayloadCodec).
+ * MeanPayloadTokenFilter leaves a single payload per term and document, but as for the average function, several
+ * are averaged and a document without any scores 1.
+ */
+public class PayloadWeightedTermQuery extends Query {
+
+    private final Term term;
+    private final TermContext termContext;
+    private final float payloadScale;
+
+    /**
+     * @param term the term
+     * @param termContext the term states if already resolved, or null to look them up
+     * @param payloadScale the scale of quantized payloads
+     */
+    public PayloadWeightedTermQuery(Term term, TermContext termContext, float payloadScale) {
+        this.term = term;
+        this.termContext = termContext;
+        this.payloadScale = payloadScale;
+    }
+
+    public Term getTerm() {
+        return term;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new PayloadWeight(searcher);
+    }
+
+    private final class PayloadWeight extends Weight {
+        private final TermContext states;
+        // as for a constant score query, the boost and query norm are all the weight there is
+        private float boost = 1.0f;
+        private float queryNorm = 1.0f;
+        private float queryWeight = 1.0f;
+
+        PayloadWeight(IndexSearcher searcher) throws IOException {
+            super(PayloadWeightedTermQuery.this);
+            final IndexReaderContext topContext = searcher.getTopReaderContext();
+            // the term states are only valid for the reader they were built for
+            if (termContext == null || termContext.topReaderContext != topContext) {
+                this.states = TermContext.build(topContext, term);
+            } else {
+                this.states = termContext;
+            }
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            terms.add(term);
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            queryWeight = boost;
+            return queryWeight * queryWeight;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+            this.boost = boost;
+            this.queryNorm = norm;
+            this.queryWeight = queryNorm * boost;
+        }
+
+        /**
+         * @return the term's postings with payloads in the segment, or null if it is not in the segment
+         */
+        private PostingsEnum postings(LeafReaderContext context) throws IOException {
+            final TermState state = states.get(context.ord);
+            if (state == null) {
+                return null;
+            }
+            final TermsEnum termsEnum = context.reader().terms(term.field()).iterator();
+            termsEnum.seekExact(term.bytes(), state);
+            return termsEnum.postings(null, PostingsEnum.PAYLOADS);
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            final PostingsEnum postings = postings(context);
+            if (postings == null) {
+                return null;
+            }
+            final float scoreWeight = queryWeight;
+            return new Scorer(this) {
+                // the positions can only be read once per doc, so the payload is kept for repeated score() calls
+                private int payloadDoc = -1;
+                private float payload;
+
+                @Override
+                public int docID() {
+                    return postings.docID();
+                }
+
+                @Override
+                public int freq() throws IOException {
+                    return postings.freq();
+                }
+
+                @Override
+                public float score() throws IOException {
+                    final int doc = postings.docID();
+                    if (doc != payloadDoc) {
+                        payload = meanPayload(postings);
+                        payloadDoc = doc;
+                    }
+                    return scoreWeight * payload;
+                }
+
+                @Override
+                public DocIdSetIterator iterator() {
+                    return postings;
+                }
+            };
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            final PostingsEnum postings = postings(context);
+            if (postings == null || postings.advance(doc) != doc) {
+                return Explanation.noMatch("no matching term");
+            }
+            final float payload = meanPayload(postings);
+            return Explanation.match(queryWeight * payload, "weight(" + getQuery() + " in " + doc + "), product of:",
+                    Explanation.match(boost, "boost"),
+                    Explanation.match(queryNorm, "queryNorm"),
+                    Explanation.match(payload, "mean payload"));
+        }
+    }
+
+    /**
+     * @return the mean of the payloads of the current doc's positions, or 1 if there are none
+     */
+    private float meanPayload(PostingsEnum postings) throws IOException {
+        float total = 0.0f;
+        int numPayloads = 0;
+        for (int i = postings.freq(); i > 0; i--) {
+            postings.nextPosition();
+            final BytesRef payload = postings.getPayload();
+            if (payload != null) {
+                total += PayloadCodec.decode(payload, payloadScale);
+                numPayloads++;
+            }
+        }
+        return numPayloads == 0 ? 1.0f : total / numPayloads;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder("payload(");
+        if (!term.field().equals(field)) {
+            buffer.append(term.field()).append(":");
+        }
+        return buffer.append(term.text()).append(")").toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        PayloadWeightedTermQuery other = (PayloadWeightedTermQuery) obj;
+        return term.equals(other.term) && payloadScale == other.payloadScale;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * getClass().hashCode() + term.hashCode()) + Float.floatToIntBits(payloadScale);
+    }
+}
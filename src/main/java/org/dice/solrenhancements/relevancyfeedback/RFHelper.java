@@ -4,25 +4,31 @@ package org.dice.solrenhancements.relevancyfeedback;
  * Created by simon.hughes on 9/2/14.
  */
 
-import org.apache.lucene.document.Document;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.function.BoostedQuery;
 import org.apache.lucene.queries.function.FunctionQuery;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.queries.function.valuesource.QueryValueSource;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.SolrParams;
-import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.search.*;
 import org.apache.solr.util.SolrPluginUtils;
 
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -32,22 +38,34 @@ public class RFHelper
 {
     // Pattern is thread safe -- TODO? share this with general 'fl' param
     private static final Pattern splitList = Pattern.compile(",| ");
+    // the number of top rf terms in the query finding the candidates to rescore
+    public static final int DEFAULT_RESCORE_TERMS = 20;
 
     final SolrIndexSearcher searcher;
     final QParser qParser;
     final RelevancyFeedback relevancyFeedback;
     final IndexReader reader;
-    final SchemaField uniqueKeyField;
     final boolean needDocSet;
+    final boolean weightedTermsQuery;
+    final boolean maxScorePruning;
+    final int rescoreCandidates;
+    final int rescoreTerms;
+    final int rerankDocs;
+    final float rerankWeight;
 
 
-    public RFHelper(SolrParams params, SolrIndexSearcher searcher, SchemaField uniqueKeyField, QParser qParser )
+    public RFHelper(SolrParams params, SolrIndexSearcher searcher, QParser qParser )
     {
         this.searcher = searcher;
         this.qParser = qParser;
         this.reader = searcher.getIndexReader();
-        this.uniqueKeyField = uniqueKeyField;
         this.needDocSet = params.getBool(FacetParams.FACET, false);
+        this.weightedTermsQuery = "weighted".equalsIgnoreCase(params.get(RFParams.QUERY_TYPE));
+        this.maxScorePruning = params.getBool(RFParams.MAX_SCORE, false);
+        this.rescoreCandidates = params.getInt(RFParams.RESCORE_CANDIDATES, 0);
+        this.rescoreTerms = params.getInt(RFParams.RESCORE_TERMS, DEFAULT_RESCORE_TERMS);
+        this.rerankDocs = params.getInt(RFParams.RERANK_DOCS, 0);
+        this.rerankWeight = params.getFloat(RFParams.RERANK_WEIGHT, 1.0f);
 
         SolrParams required = params.required();
         String[] fields = splitList.split(required.get(RFParams.SIMILARITY_FIELDS));
@@ -73,9 +91,9 @@ public class RFHelper
 
         String[] payloadFields = getFieldList(RFParams.PAYLOAD_FIELDS, params);
         if(payloadFields != null){
-            throw new RuntimeException("Payload fields are not currently supported");
-            //relevancyFeedback.setPayloadFields(payloadFields);
+            relevancyFeedback.setPayloadFields(payloadFields);
         }
+        relevancyFeedback.setPayloadScale(params.getFloat(RFParams.PAYLOAD_SCALE, RelevancyFeedback.DEFAULT_PAYLOAD_SCALE));
         relevancyFeedback.setAnalyzer( searcher.getSchema().getIndexAnalyzer() );
 
         // configurable params
@@ -96,10 +114,15 @@ public class RFHelper
         relevancyFeedback.setMaxQueryTermsPerField(params.getInt(RFParams.MAX_QUERY_TERMS_PER_FIELD, RelevancyFeedback.DEFAULT_MAX_QUERY_TERMS_PER_FIELD));
         relevancyFeedback.setMaxNumTokensParsedPerField(params.getInt(RFParams.MAX_NUM_TOKENS_PARSED_PER_FIELD, RelevancyFeedback.DEFAULT_MAX_NUM_TOKENS_PARSED_PER_FIELD));
         relevancyFeedback.setLogTf(params.getBool(RFParams.IS_LOG_TF, RelevancyFeedback.DEFAULT_IS_LOG_TF));
+        relevancyFeedback.setMaxTermsPerSeed(params.getInt(RFParams.MAX_SEED_TERMS, RelevancyFeedback.DEFAULT_MAX_TERMS_PER_SEED));
 
         relevancyFeedback.setBoostFields(SolrPluginUtils.parseFieldBoosts(params.getParams(RFParams.QF)));
         relevancyFeedback.setStreamBoostFields(SolrPluginUtils.parseFieldBoosts(params.getParams(RFParams.STREAM_QF)));
 
+        relevancyFeedback.setMaxStreamChars(params.getInt(RFParams.STREAM_MAX_CHARS, RelevancyFeedback.DEFAULT_MAX_STREAM_CHARS));
+        // rescoring compares the candidates to all the scored terms, not only the selected ones
+        relevancyFeedback.setKeepSeedVector(this.rescoreCandidates > 0);
+
         String streamHead = params.get(RFParams.STREAM_HEAD);
         if(streamHead != null) {
             relevancyFeedback.setStreamHead(streamHead);
@@ -115,6 +138,22 @@ public class RFHelper
         if(streamBodyFields != null){
             relevancyFeedback.setStreamBodyfieldNames(streamBodyFields);
         }
+
+        // fields of the same type are analyzed the same way, so the content stream only needs analyzing once for them
+        Map<String, Analyzer> analysisChains = new HashMap<String, Analyzer>();
+        IndexSchema schema = searcher.getSchema();
+        for(String[] streamFields: new String[][]{ relevancyFeedback.getStreamHeadfieldNames(), relevancyFeedback.getStreamBodyfieldNames() }){
+            if(streamFields == null){
+                continue;
+            }
+            for(String fieldName: streamFields){
+                FieldType fieldType = schema.getFieldTypeNoEx(fieldName);
+                if(fieldType != null){
+                    analysisChains.put(fieldName, fieldType.getIndexAnalyzer());
+                }
+            }
+        }
+        relevancyFeedback.setAnalysisChains(analysisChains);
     }
 
     private String[] getFieldList(String key, SolrParams params) {
@@ -128,9 +167,13 @@ public class RFHelper
         return null;
     }
 
+    private boolean hasBoostFn(){
+        return relevancyFeedback.getBoostFn() != null && relevancyFeedback.getBoostFn().trim().length() > 0;
+    }
+
     private Query getBoostedFunctionQuery(Query q) throws SyntaxError{
 
-        if (relevancyFeedback.getBoostFn() == null || relevancyFeedback.getBoostFn().trim().length() == 0) {
+        if (!hasBoostFn()) {
             return q;
         }
 
@@ -144,39 +187,203 @@ public class RFHelper
         return new BoostedQuery(q, vs);
     }
 
+    private Query getRawRFQuery(RFQuery RFQuery){
+        if(this.weightedTermsQuery){
+            return RFQuery.getWeightedTermsQuery();
+        }
+        return RFQuery.getOrQuery();
+    }
+
+    /**
+     * Finds the top rerank.docs matches of the first pass query, and only computes the second pass query for those, as
+     * Solr's ReRankQParser does. The matches past the window keep their first pass order and score, and the number
+     * found and any facets are those of the first pass query.
+     *
+     * @param addScores true to add the weighted second pass score to the first pass score (user query then rf query),
+     *                  false to replace it (rf query then the rf query with the boost function)
+     * @return the matches, or null if reranking is off or doesn't apply to the request
+     */
+    private DocListAndSet getRerankedMatches(Query firstPassQuery, Query secondPassQuery, final boolean addScores, List<Query> filters, Sort lsort, int start, int rows, int flags) throws IOException {
+        if(this.rerankDocs <= 0 || lsort != null){
+            return null;
+        }
+        int length = Math.max(this.rerankDocs, start + rows);
+
+        DocListAndSet results = new DocListAndSet();
+        if (this.needDocSet) {
+            results = searcher.getDocListAndSet(firstPassQuery, filters, null, 0, length, flags | SolrIndexSearcher.GET_SCORES);
+        } else {
+            results.docList = searcher.getDocList(firstPassQuery, filters, null, 0, length, flags | SolrIndexSearcher.GET_SCORES);
+        }
+
+        DocList firstPass = results.docList;
+        ScoreDoc[] hits = new ScoreDoc[firstPass.size()];
+        DocIterator iterator = firstPass.iterator();
+        for(int i = 0; i < hits.length; i++){
+            int doc = iterator.nextDoc();
+            hits[i] = new ScoreDoc(doc, iterator.score());
+        }
+
+        int windowSize = Math.min(this.rerankDocs, hits.length);
+        if(windowSize > 0){
+            final float weight = this.rerankWeight;
+            TopDocs window = new TopDocs(firstPass.matches(), Arrays.copyOf(hits, windowSize), firstPass.maxScore());
+            TopDocs reranked = new QueryRescorer(secondPassQuery) {
+                @Override
+                protected float combine(float firstPassScore, boolean secondPassMatches, float secondPassScore) {
+                    if(!secondPassMatches){
+                        return firstPassScore;
+                    }
+                    return addScores ? firstPassScore + weight * secondPassScore : secondPassScore;
+                }
+            }.rescore(searcher, window, windowSize);
+            System.arraycopy(reranked.scoreDocs, 0, hits, 0, windowSize);
+        }
+
+        float maxScore = 0.0f;
+        for(ScoreDoc hit: hits){
+            maxScore = Math.max(maxScore, hit.score);
+        }
+        int len = Math.max(0, Math.min(rows, hits.length - start));
+        int[] docs = new int[len];
+        float[] scores = new float[len];
+        for(int i = 0; i < len; i++){
+            docs[i] = hits[start + i].doc;
+            scores[i] = hits[start + i].score;
+        }
+        results.docList = new DocSlice(0, len, docs, scores, firstPass.matches(), maxScore);
+        return results;
+    }
+
+    /**
+     * Finds the candidates with a query of the top rf terms only, and ranks them by the cosine similarity of their
+     * terms to every term scored for the seeds, not only the maxflqt selected as rf terms. Only the candidates are
+     * ever ranked, and the number found and any facets are those of the candidate query.
+     *
+     * @return the matches, or null if rescoring is off or doesn't apply to the request
+     */
+    private RFResult getRescoredMatches(RFQuery RFQuery, List<Query> filters, Sort lsort, int start, int rows, int flags) throws IOException {
+        if(this.rescoreCandidates <= 0 || lsort != null || hasBoostFn()){
+            return null;
+        }
+        Query candidateQuery = getRawRFQuery(RFQuery.getTopTermsQuery(this.rescoreTerms));
+        int window = Math.max(this.rescoreCandidates, start + rows);
+
+        DocListAndSet results = new DocListAndSet();
+        if (this.needDocSet) {
+            results = searcher.getDocListAndSet(candidateQuery, filters, null, 0, window, flags);
+        } else {
+            results.docList = searcher.getDocList(candidateQuery, filters, null, 0, window, flags);
+        }
+
+        final int[] candidates = new int[results.docList.size()];
+        DocIterator iterator = results.docList.iterator();
+        for(int i = 0; i < candidates.length; i++){
+            candidates[i] = iterator.nextDoc();
+        }
+        final float[] similarities = relevancyFeedback.cosineSimilarity(RFQuery.getSeedVector(), candidates);
+
+        // most similar first, ties in docid order
+        Integer[] order = new Integer[candidates.length];
+        for(int i = 0; i < order.length; i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int cmp = Float.compare(similarities[b], similarities[a]);
+                return cmp != 0 ? cmp : Integer.compare(candidates[a], candidates[b]);
+            }
+        });
+
+        int len = Math.max(0, Math.min(rows, candidates.length - start));
+        int[] docs = new int[len];
+        float[] scores = new float[len];
+        for(int i = 0; i < len; i++){
+            docs[i] = candidates[order[start + i]];
+            scores[i] = similarities[order[start + i]];
+        }
+        float maxScore = order.length == 0 ? 0.0f : similarities[order[0]];
+        results.docList = new DocSlice(0, len, docs, scores, results.docList.matches(), maxScore);
+        return new RFResult(RFQuery.getRFTerms(), candidateQuery, results);
+    }
+
+    /**
+     * Finds the top matches of the rf query alone with MaxScore pruning, see {@link MaxScoreTopDocs}. The number found
+     * is a lower bound, as pruned documents are never counted.
+     *
+     * @param seeds the seed docids to exclude, or null
+     * @return the matches, or null if pruning doesn't apply to the request
+     */
+    private DocList getMaxScoreDocList(Query rfQuery, List<Query> filters, final FixedBitSet seeds, Sort lsort, int start, int rows) throws IOException {
+        if(!this.maxScorePruning || this.needDocSet || lsort != null || !(rfQuery instanceof WeightedTermsQuery)){
+            return null;
+        }
+        for(Query filter: filters){
+            if(filter instanceof PostFilter){
+                return null;
+            }
+        }
+
+        final DocSet filter = filters.isEmpty() ? null : searcher.getDocSet(filters);
+        Bits acceptDocs = new Bits() {
+            @Override
+            public boolean get(int index) {
+                return (filter == null || filter.exists(index)) && (seeds == null || !seeds.get(index));
+            }
+
+            @Override
+            public int length() {
+                return searcher.maxDoc();
+            }
+        };
+        TopDocs topDocs = MaxScoreTopDocs.search(searcher, (WeightedTermsQuery) rfQuery, acceptDocs, start + rows);
+        if(topDocs == null){
+            return null;
+        }
+
+        int len = Math.max(0, Math.min(rows, topDocs.scoreDocs.length - start));
+        int[] docs = new int[len];
+        float[] scores = new float[len];
+        for(int i = 0; i < len; i++){
+            docs[i] = topDocs.scoreDocs[start + i].doc;
+            scores[i] = topDocs.scoreDocs[start + i].score;
+        }
+        return new DocSlice(0, len, docs, scores, topDocs.totalHits, topDocs.getMaxScore());
+    }
+
     public RFResult getMatchesFromDocs(DocIterator iterator, int start, int rows, List<Query> filters, int flags, Sort lsort, Query userQuery) throws IOException, SyntaxError
     {
-        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
         List<Integer> ids = new ArrayList<Integer>();
+        // the seeds are excluded by docid, so we don't need to load their unique keys
+        FixedBitSet seeds = new FixedBitSet(searcher.maxDoc());
 
         while(iterator.hasNext()) {
             int id = iterator.nextDoc();
-            Document doc = reader.document(id);
             ids.add(id);
-
-            // add exclusion filters to prevent matching seed documents
-            TermQuery tq = new TermQuery(new Term(uniqueKeyField.getName(), uniqueKeyField.getType().storedToIndexed(doc.getField(uniqueKeyField.getName()))));
-            qryBuilder.add(tq, BooleanClause.Occur.MUST_NOT);
+            seeds.set(id);
         }
 
         RFQuery RFQuery = relevancyFeedback.like(ids);
 
-        Query rawrfQuery = RFQuery.getOrQuery();
+        Query rawrfQuery = getRawRFQuery(RFQuery);
 
-        if(RFQuery.getMustMatchQuery() != null){
-            filters.add(RFQuery.getMustMatchQuery());
-        }
-        if(RFQuery.getMustNOTMatchQuery() != null){
-            filters.add(RFQuery.getMustNOTMatchQuery());
+        // each filter is resolved through the filterCache
+        filters.addAll(RFQuery.getMustMatchFilters());
+        if(RFQuery.getMustNOTMatchFilter() != null){
+            filters.add(RFQuery.getMustNOTMatchFilter());
         }
 
         Query boostedrfQuery = getBoostedFunctionQuery(rawrfQuery);
-        qryBuilder.add(boostedrfQuery, BooleanClause.Occur.MUST);
 
         Query finalQuery = null;
 
         if(userQuery != null){
             // set user query as a MUST clause, and tack on RF query as a boosted OR (should)
+            // the seeds still match the user query, they just don't get the RF boost
+            BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
+            qryBuilder.add(boostedrfQuery, BooleanClause.Occur.MUST);
+            qryBuilder.add(new BitDocSet(seeds).getTopFilter(), BooleanClause.Occur.MUST_NOT);
             Query rfQuery = qryBuilder.build();
 
             BooleanQuery.Builder personalizedQryBuilder = new BooleanQuery.Builder();
@@ -184,9 +391,35 @@ public class RFHelper
             personalizedQryBuilder.add(rfQuery, BooleanClause.Occur.SHOULD);
 
             finalQuery = personalizedQryBuilder.build();
+
+            DocListAndSet reranked = getRerankedMatches(userQuery, rfQuery, true, filters, lsort, start, rows, flags);
+            if(reranked != null){
+                return new RFResult(RFQuery.getRFTerms(), finalQuery, reranked);
+            }
         }
         else{
-            finalQuery = qryBuilder.build();
+            finalQuery = boostedrfQuery;
+            // the candidates exclude the seeds, but the MaxScore search takes them as docids rather than a filter
+            List<Query> candidateFilters = new ArrayList<Query>(filters);
+            candidateFilters.add(new SeedExclusionFilter(seeds));
+            RFResult rescored = getRescoredMatches(RFQuery, candidateFilters, lsort, start, rows, flags);
+            if(rescored != null){
+                return rescored;
+            }
+            DocList docList = getMaxScoreDocList(finalQuery, filters, seeds, lsort, start, rows);
+            if(docList != null){
+                DocListAndSet results = new DocListAndSet();
+                results.docList = docList;
+                return new RFResult(RFQuery.getRFTerms(), finalQuery, results);
+            }
+            // add exclusion filter to prevent matching seed documents
+            filters.add(new SeedExclusionFilter(seeds));
+            if(hasBoostFn()){
+                DocListAndSet reranked = getRerankedMatches(rawrfQuery, boostedrfQuery, false, filters, lsort, start, rows, flags);
+                if(reranked != null){
+                    return new RFResult(RFQuery.getRFTerms(), finalQuery, reranked);
+                }
+            }
         }
 
         DocListAndSet results = new DocListAndSet();
@@ -203,9 +436,9 @@ public class RFHelper
     public RFResult getMatchesFromContentSteam(Reader reader, int start, int rows, List<Query> filters, int flags, Sort lsort, Query userQuery) throws IOException, SyntaxError
     {
         RFQuery RFQuery = relevancyFeedback.like(reader);
-        Query rawRFQuery = RFQuery.getOrQuery();
+        Query rawRFQuery = getRawRFQuery(RFQuery);
 
-        if(RFQuery.getMustMatchQuery() != null || RFQuery.getMustNOTMatchQuery() != null){
+        if(!RFQuery.getMustMatchFilters().isEmpty() || RFQuery.getMustNOTMatchFilter() != null){
             throw new RuntimeException(
                     String.format("The %s and the %s parameters are not supported for content stream queries",
                     RFParams.FL_MUST_MATCH, RFParams.FL_MUST_NOT_MATCH));
@@ -220,6 +453,29 @@ public class RFHelper
             personalizedQryBuilder.add(boostedRFQuery, BooleanClause.Occur.SHOULD);
 
             finalQuery = personalizedQryBuilder.build();
+
+            DocListAndSet reranked = getRerankedMatches(userQuery, boostedRFQuery, true, filters, lsort, start, rows, flags);
+            if(reranked != null){
+                return new RFResult(RFQuery.getRFTerms(), finalQuery, reranked);
+            }
+        }
+        else{
+            RFResult rescored = getRescoredMatches(RFQuery, filters, lsort, start, rows, flags);
+            if(rescored != null){
+                return rescored;
+            }
+            DocList docList = getMaxScoreDocList(finalQuery, filters, null, lsort, start, rows);
+            if(docList != null){
+                DocListAndSet results = new DocListAndSet();
+                results.docList = docList;
+                return new RFResult(RFQuery.getRFTerms(), finalQuery, results);
+            }
+            if(hasBoostFn()){
+                DocListAndSet reranked = getRerankedMatches(rawRFQuery, boostedRFQuery, false, filters, lsort, start, rows, flags);
+                if(reranked != null){
+                    return new RFResult(RFQuery.getRFTerms(), finalQuery, reranked);
+                }
+            }
         }
 
         DocListAndSet results = new DocListAndSet();
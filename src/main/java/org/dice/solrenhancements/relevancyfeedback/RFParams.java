@@ -35,8 +35,22 @@ public interface RFParams {
     java.lang.String FL_MUST_MATCH      = PREFIX + "fl.match";   // list of fields that must match the target document
     java.lang.String FL_MUST_NOT_MATCH  = PREFIX + "fl.different";   // list of fields that must NOT match the target document
 
+    // how the RF terms are queried: boolean (a BooleanQuery of boosted term queries) or weighted (a WeightedTermsQuery)
+    java.lang.String QUERY_TYPE = PREFIX + "querytype";
+    // skip documents that can't make the top rows when scoring a weighted rf query (the number found is then a lower bound)
+    java.lang.String MAX_SCORE = PREFIX + "maxscore";
+    // find rescore.candidates docs with the rescore.terms top rf terms, and rank them by cosine similarity to all the rf terms
+    java.lang.String RESCORE_CANDIDATES = PREFIX + "rescore.candidates";
+    java.lang.String RESCORE_TERMS = PREFIX + "rescore.terms";
+    // compute the rf query (with a user query) or the boost function (without) only for the top rerank.docs docs
+    java.lang.String RERANK_DOCS = PREFIX + "rerank.docs";
+    // the weight of the rf score added to the user query score when reranking
+    java.lang.String RERANK_WEIGHT = PREFIX + "rerank.weight";
+
     java.lang.String BOOST_FN = PREFIX + "boostfn";
     java.lang.String PAYLOAD_FIELDS = PREFIX + "payloadfl";
+    // the payloadScale the payload fields were quantized with by their token filter factory, if they were
+    java.lang.String PAYLOAD_SCALE = PREFIX + "payloadscale";
 
     // normalize field boosts
     java.lang.String NORMALIZE_FIELD_BOOSTS = PREFIX + "normflboosts";
@@ -47,6 +61,8 @@ public interface RFParams {
     java.lang.String STREAM_BODY_FL = "stream.body.fl";
 
     java.lang.String STREAM_QF = "stream.qf";
+    // the most chars (not bytes) read from the posted content stream, 1M by default
+    java.lang.String STREAM_MAX_CHARS = PREFIX + "stream.maxchars";
     // end new to this plugin
 
     // the /rf request handler uses 'rows'
@@ -58,9 +74,38 @@ public interface RFParams {
     // If multiple docs are matched in the query, what offset do you want?
     public final static String MATCH_OFFSET  = PREFIX + "match.offset";
 
+    // maximum number of documents matched by rf.q that are used as seeds
+    public final static String MAX_SEEDS = PREFIX + "maxseeds";
+
+    // how the seeds are chosen when rf.q matches more than rf.maxseeds documents: top, weighted or random
+    public final static String SEED_SAMPLING = PREFIX + "seedsampling";
+
+    // keep only this many of the highest weighted terms per field from each seed document, 0 to keep them all
+    public final static String MAX_SEED_TERMS = PREFIX + "maxseedterms";
+
     // Do you want to include the original document in the results or not
     public final static String INTERESTING_TERMS = PREFIX + "interestingTerms";  // false,details,(list or true)
 
+    public enum SeedSampling {
+        TOP,        // the highest scoring matches
+        WEIGHTED,   // sample the matches, weighted by score
+        RANDOM;     // sample the matches uniformly
+
+        public static SeedSampling get( String p )
+        {
+            if( p != null ) {
+                p = p.toUpperCase(Locale.ROOT);
+                if( p.equals( "WEIGHTED" ) ) {
+                    return WEIGHTED;
+                }
+                else if( p.equals( "RANDOM" ) ) {
+                    return RANDOM;
+                }
+            }
+            return TOP;
+        }
+    }
+
     public enum TermStyle {
         NONE,
         LIST,
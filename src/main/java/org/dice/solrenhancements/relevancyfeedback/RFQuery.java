@@ -1,42 +1,73 @@
 package org.dice.solrenhancements.relevancyfeedback;
 
-import org.apache.lucene.queries.payloads.AveragePayloadFunction;
-import org.apache.lucene.queries.payloads.PayloadScoreQuery;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
 import org.apache.lucene.search.*;
-import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.solr.util.SolrPluginUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Created by simon.hughes on 11/25/14.
  */
 public class RFQuery {
 
+    private static final Pattern SPACE_AROUND_LESS_THAN = Pattern.compile("(\\s+<\\s*)|(\\s*<\\s+)");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+    private static final Pattern LESS_THAN = Pattern.compile("<");
+
     private final List<RFTerm> RFTerms;
     private final String mm;
-    private BooleanQuery mustMatchQuery = null;
-    private BooleanQuery mustNOTMatchQuery = null;
+    private List<Query> mustMatchFilters = new ArrayList<Query>();
+    private Query mustNOTMatchFilter = null;
+    private float payloadScale = RelevancyFeedback.DEFAULT_PAYLOAD_SCALE;
+    private SeedVector seedVector = null;
 
     public RFQuery(List<RFTerm> RFTerms, String mm){
         this.RFTerms = RFTerms == null? new ArrayList<RFTerm>() : RFTerms;
         this.mm = mm;
     }
-    public BooleanQuery getMustMatchQuery(){
-        return this.mustMatchQuery;
+    /**
+     * @return the filters for the values the matches must have, one per value
+     */
+    public List<Query> getMustMatchFilters(){
+        return this.mustMatchFilters;
+    }
+
+    public void setMustMatchFilters(List<Query> filters){
+        this.mustMatchFilters = filters;
+    }
+
+    /**
+     * @return a negative filter for the values the matches must NOT have, or null if there are none
+     */
+    public Query getMustNOTMatchFilter(){
+        return this.mustNOTMatchFilter;
+    }
+
+    public void setMustNOTMatchFilter(Query filter){
+        this.mustNOTMatchFilter = filter;
     }
 
-    public void setMustMatchQuery(BooleanQuery query){
-        this.mustMatchQuery = query;
+    /**
+     * Sets the scale quantized payloads are decoded with when scoring payload terms
+     */
+    public void setPayloadScale(float payloadScale){
+        this.payloadScale = payloadScale;
     }
 
-    public Query getMustNOTMatchQuery(){
-        return this.mustNOTMatchQuery;
+    /**
+     * @return the weights of all the scored terms to rescore against, or null if they were not kept
+     */
+    SeedVector getSeedVector(){
+        return this.seedVector;
     }
 
-    public void setMustNOTMatchQuery(BooleanQuery query){
-        this.mustNOTMatchQuery = query;
+    void setSeedVector(SeedVector seedVector){
+        this.seedVector = seedVector;
     }
 
     public List<RFTerm> getRFTerms(){
@@ -52,14 +83,92 @@ public class RFQuery {
         return qryBuilder.build();
     }
 
+    /**
+     * The RF terms as a single query scored term at a time, equivalent to {@link #getOrQuery()} but not limited by
+     * the maximum clause count. Payload terms are scored from their payloads, so if there are any the boolean query
+     * is used instead.
+     */
+    public Query getWeightedTermsQuery(){
+        final int numTerms = this.RFTerms.size();
+        Term[] terms = new Term[numTerms];
+        float[] weights = new float[numTerms];
+        TermContext[] termContexts = new TermContext[numTerms];
+        for(int i = 0; i < numTerms; i++){
+            RFTerm RFTerm = this.RFTerms.get(i);
+            if(RFTerm.hasPayload()){
+                return getOrQuery();
+            }
+            terms[i] = RFTerm.getTerm();
+            weights[i] = RFTerm.getFinalScore();
+            termContexts[i] = RFTerm.getTermContext();
+        }
+        int minShouldMatch = mm == null ? 0 : calculateMinShouldMatch(numTerms, mm);
+        return new WeightedTermsQuery(terms, weights, termContexts, minShouldMatch);
+    }
+
+    /**
+     * The number of optional clauses that must match for the mm spec, as SolrPluginUtils.setMinShouldMatch computes
+     * it for a BooleanQuery (its calculateMinShouldMatch is not public)
+     */
+    static int calculateMinShouldMatch(int optionalClauseCount, String spec) {
+        int result = optionalClauseCount;
+        spec = spec.trim();
+
+        if (spec.indexOf('<') > -1) {
+            // conditional specs, e.g. "2<-25% 9<-3"
+            spec = SPACE_AROUND_LESS_THAN.matcher(spec).replaceAll("<");
+            for (String s : SPACES.split(spec)) {
+                String[] parts = LESS_THAN.split(s, 0);
+                int upperBound = Integer.parseInt(parts[0]);
+                if (optionalClauseCount <= upperBound) {
+                    return result;
+                }
+                result = calculateMinShouldMatch(optionalClauseCount, parts[1]);
+            }
+            return result;
+        }
+
+        if (spec.indexOf('%') > -1) {
+            // a percentage, the % being the last char
+            int percent = Integer.parseInt(spec.substring(0, spec.length() - 1));
+            float calc = (result * percent) * (1 / 100f);
+            result = calc < 0 ? result + (int) calc : (int) calc;
+        } else {
+            int calc = Integer.parseInt(spec);
+            result = calc < 0 ? result + calc : calc;
+        }
+        return optionalClauseCount < result ? optionalClauseCount : (result < 0 ? 0 : result);
+    }
+
+    /**
+     * The numTerms highest scoring RF terms, matching any of them, for a cheap query to find the candidates to
+     * rescore against all the terms
+     */
+    public RFQuery getTopTermsQuery(int numTerms){
+        List<RFTerm> topTerms = new ArrayList<RFTerm>(this.RFTerms);
+        if(numTerms > 0 && numTerms < topTerms.size()){
+            Collections.sort(topTerms, RFTerm.FLD_BOOST_X_SCORE_ORDER);
+            topTerms = topTerms.subList(0, numTerms);
+        }
+        RFQuery topTermsQuery = new RFQuery(topTerms, "1");
+        topTermsQuery.setPayloadScale(payloadScale);
+        return topTermsQuery;
+    }
+
     private Query toBoostedQuery(RFTerm RFTerm){
         Query tq = toTermQuery(RFTerm);
         return new BoostQuery(tq, RFTerm.getFinalScore());
     }
 
     private Query toTermQuery(RFTerm RFTerm) {
+        // re-use the term states resolved when selecting the terms, if we have them
+        final TermContext termContext = RFTerm.getTermContext();
         if(RFTerm.hasPayload()) {
-            return new PayloadScoreQuery(new SpanTermQuery(RFTerm.getTerm()), new AveragePayloadFunction(), false);
+            // scored by the term's payload in each doc, read straight from the postings
+            return new PayloadWeightedTermQuery(RFTerm.getTerm(), termContext, payloadScale);
+        }
+        else if(termContext != null){
+            return new TermQuery(RFTerm.getTerm(), termContext);
         }
         else{
             return new TermQuery(RFTerm.getTerm());
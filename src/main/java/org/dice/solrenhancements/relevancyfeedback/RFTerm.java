@@ -2,6 +2,8 @@ package org.dice.solrenhancements.relevancyfeedback;
 
 import com.google.common.base.Strings;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.util.BytesRef;
 
 import java.text.DecimalFormat;
 import java.util.Comparator;
@@ -11,7 +13,8 @@ import java.util.Comparator;
  */
 public class RFTerm implements Comparable<RFTerm> {
 
-    private final String word;
+    private final BytesRef bytes;
+    private String word = null;
     private final String fieldName;
     private final float idf;
     private final int docFreq;
@@ -25,17 +28,22 @@ public class RFTerm implements Comparable<RFTerm> {
     private final boolean hasPayload;
     private final boolean useBoost;
 
+    // computed once, these are read on every comparison when sorting terms
+    private final float termWeight;
     private float vectorLength = 1.0f;
+    private float finalScore;
+    // per segment term states resolved when the term was selected, used to build the term query
+    private TermContext termContext = null;
 
     // non-payload
-    public RFTerm(String word, String fieldName, float tf, float idf, int docFreq, boolean logTf, float fieldBoost, boolean useBoost){
-        this(word, fieldName, tf, idf, docFreq, logTf, fieldBoost, 1.0f, useBoost, false);
+    public RFTerm(BytesRef bytes, String fieldName, float tf, float idf, int docFreq, boolean logTf, float fieldBoost, boolean useBoost){
+        this(bytes, fieldName, tf, idf, docFreq, logTf, fieldBoost, 1.0f, useBoost, false);
     }
 
     // with payload
-    public RFTerm(String word, String fieldName, float tf, float idf, int docFreq, boolean logTf, float fieldBoost, float payload, boolean useBoost, boolean hasPayload){
+    public RFTerm(BytesRef bytes, String fieldName, float tf, float idf, int docFreq, boolean logTf, float fieldBoost, float payload, boolean useBoost, boolean hasPayload){
 
-        this.word = word;
+        this.bytes = bytes;
         this.fieldName = fieldName;
         this.idf = idf;
         this.docFreq = docFreq;
@@ -45,12 +53,42 @@ public class RFTerm implements Comparable<RFTerm> {
         this.logTf = logTf;
         this.useBoost = useBoost;
         this.hasPayload = hasPayload;
+        this.termWeight = termWeight(tf, idf, payload, logTf, useBoost, hasPayload);
+        this.finalScore = fieldBoost * termWeight;
+    }
+
+    /**
+     * Computes the weight of a term, as returned by {@link #getTermWeight()}, without creating an RFTerm
+     */
+    static float termWeight(float tf, float idf, float payload, boolean logTf, boolean useBoost, boolean hasPayload){
+        if(hasPayload){
+            // for the payload, typically we want to include the TF but not the IDF. This is what is passed to the payload value
+            return payload;
+        }
+        else {
+            if(false == useBoost){
+                return 1.0f;
+            }
+            float tfVal = tf;
+            if (logTf) {
+                tfVal = logTf(tf);
+            }
+            return tfVal * idf;
+        }
     }
 
     public String getWord() {
+        // only decoded when needed, for display
+        if (word == null) {
+            word = bytes.utf8ToString();
+        }
         return word;
     }
 
+    public BytesRef getBytes() {
+        return bytes;
+    }
+
     public String getFieldName() {
         return fieldName;
     }
@@ -84,32 +122,23 @@ public class RFTerm implements Comparable<RFTerm> {
     }
 
     public float getTermWeight(){
-        if(this.hasPayload()){
-            // for the payload, typically we want to include the TF but not the IDF. This is what is passed to the payload value
-            return this.getPayload();
-        }
-        else {
-            if(false == this.useBoost){
-                return 1.0f;
-            }
-            float tfVal = this.tf;
-            if (this.logTf) {
-                tfVal = getLogTf();
-            }
-            return tfVal * this.idf;
-        }
+        return termWeight;
     }
 
     public float getNormalizedTermWeight(){
-        return this.getTermWeight() / this.vectorLength;
+        return this.termWeight / this.vectorLength;
     }
 
     private float getLogTf() {
-        return (float) Math.log(this.tf + 1.0d);
+        return logTf(this.tf);
+    }
+
+    private static float logTf(float tf) {
+        return (float) Math.log(tf + 1.0d);
     }
 
     public float getFinalScore(){
-        return this.getFieldBoost() * this.getNormalizedTermWeight();
+        return finalScore;
     }
 
     public String valuesToString(){
@@ -152,7 +181,7 @@ public class RFTerm implements Comparable<RFTerm> {
 
     // used in debug info (relevancyFeedback.interestingTerms = details)
     public Term getTerm() {
-        return new Term(this.getFieldName(), this.getWord());
+        return new Term(this.getFieldName(), this.bytes);
     }
 
     public boolean hasPayload() {
@@ -161,5 +190,14 @@ public class RFTerm implements Comparable<RFTerm> {
 
     public void setVectorLength(float vectorLength) {
         this.vectorLength = vectorLength;
+        this.finalScore = this.getFieldBoost() * this.getNormalizedTermWeight();
+    }
+
+    public TermContext getTermContext() {
+        return termContext;
+    }
+
+    public void setTermContext(TermContext termContext) {
+        this.termContext = termContext;
     }
 }
\ No newline at end of file
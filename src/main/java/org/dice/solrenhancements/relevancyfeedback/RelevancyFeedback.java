@@ -21,23 +21,29 @@ package org.dice.solrenhancements.relevancyfeedback;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.payloads.PayloadHelper;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
+import org.apache.lucene.queries.TermsQuery;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.search.similarities.TFIDFSimilarity;
 import org.apache.lucene.util.*;
-import org.apache.lucene.util.PriorityQueue;
+import org.dice.solrenhancements.tokenfilters.PayloadCodec;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 /**
@@ -247,6 +253,28 @@ public final class RelevancyFeedback {
     public static final int DEFAULT_MAX_QUERY_TERMS_PER_FIELD = 100;
 
 
+    /**
+     * Keep all of the terms of each seed document by default
+     *
+     * @see #setMaxTermsPerSeed
+     */
+    public static final int DEFAULT_MAX_TERMS_PER_SEED = 0;
+
+    /**
+     * Read at most this many chars (1M) from a content stream by default. The limit is a budget of UTF-16 chars, not
+     * of bytes: at 2 bytes a char the buffered stream takes at most 2MB of heap, whatever the stream's encoding.
+     *
+     * @see #setMaxStreamChars
+     */
+    public static final int DEFAULT_MAX_STREAM_CHARS = 1 << 20;
+
+    /**
+     * Quantized payloads hold weights up to this value by default
+     *
+     * @see #setPayloadScale
+     */
+    public static final float DEFAULT_PAYLOAD_SCALE = PayloadCodec.DEFAULT_SCALE;
+
     /**
      * mm setting for RF query
      */
@@ -257,6 +285,11 @@ public final class RelevancyFeedback {
      */
     private Analyzer analyzer = null;
 
+    /**
+     * Analysis chain of each field, used to group the fields analyzed for a content stream
+     */
+    private Map<String, Analyzer> analysisChains = null;
+
     /**
      * Ignore words less frequent that this.
      */
@@ -310,6 +343,21 @@ public final class RelevancyFeedback {
      */
     private int maxNumTokensParsedPerField = DEFAULT_MAX_NUM_TOKENS_PARSED_PER_FIELD;
 
+    /**
+     * The number of highest weighted terms kept per field from each seed document, or 0 to keep them all
+     */
+    private int maxTermsPerSeed = DEFAULT_MAX_TERMS_PER_SEED;
+
+    /**
+     * The maximum number of chars read from a content stream
+     */
+    private int maxStreamChars = DEFAULT_MAX_STREAM_CHARS;
+
+    /**
+     * The scale the payloads of the payload fields were quantized with, if they were
+     */
+    private float payloadScale = DEFAULT_PAYLOAD_SCALE;
+
     /**
      * Ignore words if less than this len.
      */
@@ -335,6 +383,31 @@ public final class RelevancyFeedback {
      */
     private final IndexReader ir;
 
+    /**
+     * Per-segment term statistics shared across requests, or null to always use the terms dictionary
+     */
+    private TermStatsCache termStatsCache = null;
+
+    /**
+     * Term weights extracted from the fields of seed documents shared across requests, or null to always extract them
+     */
+    private SeedTermsCache seedTermsCache = null;
+
+    /**
+     * Runs the seed term extraction and per field term selection in parallel, or null to run them in the calling thread
+     */
+    private ExecutorService executor = null;
+
+    /**
+     * Keep the weights of all the scored terms on the query, to rescore documents against
+     */
+    private boolean keepSeedVector = false;
+
+    /**
+     * Maximum number of tasks the seed documents are split into when running in parallel
+     */
+    private int parallelism = 1;
+
 
 
     /**
@@ -424,6 +497,17 @@ public final class RelevancyFeedback {
         this.analyzer = analyzer;
     }
 
+    /**
+     * Sets the analysis chain of each field, e.g. the index analyzer of its field type. Fields with the same chain
+     * analyze text the same way, so a content stream is only analyzed once for all of them. The analyzer set
+     * with {@link #setAnalyzer(Analyzer)} is still used to analyze the text.
+     *
+     * @param analysisChains the analysis chain of each field, compared by identity
+     */
+    public void setAnalysisChains(Map<String, Analyzer> analysisChains) {
+        this.analysisChains = analysisChains;
+    }
+
     /**
      * Returns the frequency below which terms will be ignored in the source doc. The default
      * frequency is the {@link #DEFAULT_MIN_TERM_FREQ}.
@@ -786,6 +870,116 @@ public final class RelevancyFeedback {
         maxNumTokensParsedPerField = i;
     }
 
+    /**
+     * @return the cache of per-segment term statistics, or null if not caching
+     */
+    public TermStatsCache getTermStatsCache() {
+        return termStatsCache;
+    }
+
+    /**
+     * Sets the cache of per-segment term statistics used to look up the document frequencies of the candidate terms.
+     * The cache is keyed on the segment core, so it can be shared by requests against different searchers.
+     *
+     * @param termStatsCache the cache to use, or null to always use the terms dictionary
+     */
+    public void setTermStatsCache(TermStatsCache termStatsCache) {
+        this.termStatsCache = termStatsCache;
+    }
+
+    /**
+     * @return the cache of the term weights extracted from seed documents, or null if not caching
+     */
+    public SeedTermsCache getSeedTermsCache() {
+        return seedTermsCache;
+    }
+
+    /**
+     * Sets the cache of the term weights extracted from the fields of seed documents, so frequently used seeds
+     * don't have their term vectors read or their stored fields analyzed on every request.
+     *
+     * @param seedTermsCache the cache to use, or null to always extract the terms
+     */
+    public void setSeedTermsCache(SeedTermsCache seedTermsCache) {
+        this.seedTermsCache = seedTermsCache;
+    }
+
+    /**
+     * Sets the executor used to extract the terms of the seed documents and select the terms of each field in
+     * parallel. The results are merged in document and field order, so the query does not depend on the
+     * scheduling. Any executor can be used, e.g. a fixed thread pool, a ForkJoinPool or a virtual thread executor.
+     *
+     * @param executor the executor to run the tasks on, or null to run serially in the calling thread
+     * @param parallelism the maximum number of tasks to split the seed documents into
+     */
+    public void setExecutor(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Sets whether the queries keep the weights of every scored term, not only the selected ones, for
+     * {@link #cosineSimilarity(SeedVector, int[])}. Off by default, as it holds on to all the candidate terms.
+     */
+    public void setKeepSeedVector(boolean keepSeedVector) {
+        this.keepSeedVector = keepSeedVector;
+    }
+
+    /**
+     * @return the number of highest weighted terms kept per field from each seed document, or 0 if all are kept
+     * @see #DEFAULT_MAX_TERMS_PER_SEED
+     */
+    public int getMaxTermsPerSeed() {
+        return maxTermsPerSeed;
+    }
+
+    /**
+     * Sets the number of terms kept per field from each seed document in {@link #like(List)}. Only the terms with
+     * the highest term frequency (or payload weight) in the seed are added to the accumulated field terms, which
+     * bounds their size by the number of seeds rather than the seeds' vocabulary.
+     *
+     * @param maxTermsPerSeed the number of terms to keep, or 0 to keep them all
+     */
+    public void setMaxTermsPerSeed(int maxTermsPerSeed) {
+        this.maxTermsPerSeed = maxTermsPerSeed;
+    }
+
+    /**
+     * @return the maximum number of chars read from a content stream
+     * @see #DEFAULT_MAX_STREAM_CHARS
+     */
+    public int getMaxStreamChars() {
+        return maxStreamChars;
+    }
+
+    /**
+     * Sets the maximum number of chars read from a content stream in {@link #like(Reader)}, which bounds the memory
+     * used to buffer the stream for the stream.body fields (2 bytes a char). Any text past this limit is ignored.
+     *
+     * @param maxStreamChars the maximum number of chars (not bytes) to read
+     */
+    public void setMaxStreamChars(int maxStreamChars) {
+        this.maxStreamChars = maxStreamChars;
+    }
+
+    /**
+     * @return the scale of quantized payloads
+     * @see #DEFAULT_PAYLOAD_SCALE
+     */
+    public float getPayloadScale() {
+        return payloadScale;
+    }
+
+    /**
+     * Sets the scale the payloads of the payload fields were quantized with (the payloadScale of the token filter
+     * factory), see {@link PayloadCodec}. Float payloads are read as they are whatever the scale.
+     *
+     * @param payloadScale the largest weight a quantized payload holds
+     */
+    public void setPayloadScale(float payloadScale) {
+        this.payloadScale = payloadScale;
+    }
+
     /**
      * Gets the field level boosts specified in the request
      *
@@ -859,24 +1053,80 @@ public final class RelevancyFeedback {
      */
     public RFQuery like(List<Integer> docNums) throws IOException {
 
-        Map<String,Map<String, Flt>> fieldTermFreq = new HashMap<String, Map<String, Flt>>();
-        Map<String,Map<String, Flt>> mustMatchTerms = new HashMap<String, Map<String, Flt>>();
-        Map<String,Map<String, Flt>> mustNOTMatchTerms = new HashMap<String, Map<String, Flt>>();
+        final SeedTerms seedTerms;
+        if(executor == null || parallelism < 2 || docNums.size() < 2){
+            seedTerms = retrieveSeedTerms(docNums);
+        }
+        else {
+            // split the seeds into contiguous chunks, and merge the chunks back in order
+            final int numChunks = Math.min(parallelism, docNums.size());
+            List<Future<SeedTerms>> futures = new ArrayList<Future<SeedTerms>>(numChunks);
+            for(int chunk = 0; chunk < numChunks; chunk++){
+                final List<Integer> chunkDocNums = docNums.subList(
+                        chunk * docNums.size() / numChunks, (chunk + 1) * docNums.size() / numChunks);
+                futures.add(executor.submit(new Callable<SeedTerms>() {
+                    @Override
+                    public SeedTerms call() throws IOException {
+                        return retrieveSeedTerms(chunkDocNums);
+                    }
+                }));
+            }
+            List<SeedTerms> chunks = getAll(futures);
+            seedTerms = chunks.get(0);
+            for(int chunk = 1; chunk < chunks.size(); chunk++){
+                seedTerms.addAll(chunks.get(chunk));
+            }
+        }
+
+        RFQuery rfResult = buildQueryFromFieldTermFrequencies(seedTerms.fieldTermFreq, false);
+        rfResult.setMustMatchFilters(buildMustMatchFilters(seedTerms.mustMatchTerms));
+        rfResult.setMustNOTMatchFilter(buildMustNOTMatchFilter(seedTerms.mustNOTMatchTerms));
+        return rfResult;
+    }
+
+    private SeedTerms retrieveSeedTerms(List<Integer> docNums) throws IOException {
+        SeedTerms seedTerms = new SeedTerms();
         // don't go over duplicate documents
+        // only the similarity fields are truncated, the match fields are filters
+        TermWeightMap seedFieldTerms = maxTermsPerSeed > 0 ? new TermWeightMap() : null;
         for(Integer docNum: docNums){
-            retrieveTerms(docNum, getFieldNames(), fieldTermFreq);
-            retrieveTerms(docNum, getMatchFieldNames(), mustMatchTerms);
-            retrieveTerms(docNum, getDifferentFieldNames(), mustNOTMatchTerms);
+            retrieveTerms(docNum, getFieldNames(), seedTerms.fieldTermFreq, seedFieldTerms);
+            retrieveTerms(docNum, getMatchFieldNames(), seedTerms.mustMatchTerms);
+            retrieveTerms(docNum, getDifferentFieldNames(), seedTerms.mustNOTMatchTerms);
         }
+        return seedTerms;
+    }
 
-        RFQuery rfResult = buildQueryFromFieldTermFrequencies(fieldTermFreq, false);
-        if(mustMatchTerms.size() > 0){
-            rfResult.setMustMatchQuery(buildMustMatchQuery(mustMatchTerms, true));
-        }
-        if(mustNOTMatchTerms.size() > 0){
-            rfResult.setMustNOTMatchQuery(buildMustMatchQuery(mustNOTMatchTerms, false));
+    /**
+     * Waits for the tasks and returns their results in order, rethrowing the first failure
+     */
+    private static <T> List<T> getAll(List<Future<T>> futures) throws IOException {
+        List<T> results = new ArrayList<T>(futures.size());
+        try {
+            for(Future<T> future: futures){
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for RelevancyFeedback tasks");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof IOException){
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException){
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error){
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for(Future<T> future: futures){
+                future.cancel(true);
+            }
         }
-        return rfResult;
+        return results;
     }
 
     /**
@@ -899,12 +1149,11 @@ public final class RelevancyFeedback {
                         RFParams.SIMILARITY_FIELDS, RFParams.STREAM_BODY_FL));
         }
 
-        Map<String,Map<String, Flt>> fieldTermFreq = new HashMap<String, Map<String, Flt>>();
-        String streamBody = org.apache.commons.io.IOUtils.toString(reader);
-        for(String fieldName: streamBodyfields){
-            Map<String, Flt> words = new HashMap<String, Flt>();
-            fieldTermFreq.put(fieldName, words);
-            addTermWeights(new StringReader(streamBody), words, fieldName);
+        Map<String, TermWeightMap> fieldTermFreq = new HashMap<String, TermWeightMap>();
+        // stream the body rather than copying it, buffering only as much as the analyzers read
+        ContentStreamBuffer streamBody = new ContentStreamBuffer(reader, maxStreamChars);
+        for(List<String> fieldGroup: groupByAnalysisChain(streamBodyfields)){
+            addTermWeights(streamBody.newReader(), fieldTermFreq, fieldGroup);
         }
         if(getStreamHead() != null){
             if(streamHeadfields == null){
@@ -913,90 +1162,143 @@ public final class RelevancyFeedback {
                                     +"a field list must be specified using either the %s parameter or the %s parameter",
                         RFParams.SIMILARITY_FIELDS, RFParams.STREAM_HEAD_FL));
             }
-            for(String fieldName: streamHeadfields){
-                Map<String, Flt> words = null;
-                if(fieldTermFreq.containsKey(fieldName)) {
-                    words = fieldTermFreq.get(fieldName);
-                }
-                else{
-                    words = new HashMap<String, Flt>();
-                    fieldTermFreq.put(fieldName, words);
-                }
-                addTermWeights(new StringReader(getStreamHead()), words, fieldName);
+            for(List<String> fieldGroup: groupByAnalysisChain(streamHeadfields)){
+                addTermWeights(new StringReader(getStreamHead()), fieldTermFreq, fieldGroup);
             }
         }
         return buildQueryFromFieldTermFrequencies(fieldTermFreq, true);
     }
 
-    private RFQuery buildQueryFromFieldTermFrequencies(Map<String, Map<String, Flt>> fieldTermFreq, boolean contentStreamQuery) throws IOException {
+    /**
+     * Analyzes the text once for a group of fields with the same analysis chain, and adds the term weights to each
+     * field in the group
+     */
+    private void addTermWeights(Reader reader, Map<String, TermWeightMap> fieldTermFreq, List<String> fieldGroup) throws IOException {
+        if(fieldGroup.size() == 1){
+            addTermWeights(reader, getOrCreateTermWeights(fieldTermFreq, fieldGroup.get(0)), fieldGroup.get(0), true);
+            return;
+        }
+        TermWeightMap groupWords = new TermWeightMap();
+        addTermWeights(reader, groupWords, fieldGroup.get(0), true);
+        for(String fieldName: fieldGroup){
+            getOrCreateTermWeights(fieldTermFreq, fieldName).addAll(groupWords);
+        }
+    }
 
-        List<RFTerm> interestingTerms = new ArrayList<RFTerm>();
-        for(String fieldName: fieldTermFreq.keySet()){
-            Map<String,Flt> words = fieldTermFreq.get(fieldName);
-            PriorityQueue<RFTerm> queue = createQueue(fieldName, words, contentStreamQuery);
-            interestingTerms.addAll(getMostInterestingTerms(queue));
+    /**
+     * Groups the fields that produce the same tokens from the same text: those with the same analysis chain, that
+     * are either all payload fields or all not. Fields without a known analysis chain are in a group of their own.
+     *
+     * @return the groups of fields, in the order the fields are first seen
+     */
+    private List<List<String>> groupByAnalysisChain(String[] fieldNames) {
+        Map<List<Object>, List<String>> groups = new LinkedHashMap<List<Object>, List<String>>();
+        for(String fieldName: fieldNames){
+            Object chain = fieldName;
+            if(analysisChains != null && analysisChains.get(fieldName) != null){
+                chain = analysisChains.get(fieldName);
+            }
+            List<Object> key = Arrays.asList(chain, isPayloadField(fieldName));
+            List<String> group = groups.get(key);
+            if(group == null){
+                group = new ArrayList<String>();
+                groups.put(key, group);
+            }
+            group.add(fieldName);
         }
+        return new ArrayList<List<String>>(groups.values());
+    }
 
-        RFQuery rfResult = new RFQuery(interestingTerms, getMm());
-        return rfResult;
+    private static TermWeightMap getOrCreateTermWeights(Map<String, TermWeightMap> fieldTermFreq, String fieldName){
+        TermWeightMap words = fieldTermFreq.get(fieldName);
+        if(words == null){
+            words = new TermWeightMap();
+            fieldTermFreq.put(fieldName, words);
+        }
+        return words;
     }
 
     /**
-     * Compute the top most interesting terms from the priority queue of all RF Terms
+     * Selects the most interesting terms of each field. Package-private for the benchmarks.
      */
-    private List<RFTerm> getMostInterestingTerms(PriorityQueue<RFTerm> q) {
-
-        int maxTerms = (maxQueryTermsPerField <= 0) ? Integer.MAX_VALUE : maxQueryTermsPerField;
-        double sumQuaredBoost = 0.0f;
+    RFQuery buildQueryFromFieldTermFrequencies(Map<String, TermWeightMap> fieldTermFreq, final boolean contentStreamQuery) throws IOException {
 
         List<RFTerm> interestingTerms = new ArrayList<RFTerm>();
-        RFTerm currentTerm = null;
-        while ((currentTerm = q.pop()) != null
-                && interestingTerms.size() < maxTerms) {
-            // if not boost, then set score to 1.0 not tf.idf
-            // now implemented inside RFTerm
-
-            // if not boost, boostValue == 1.0, so this just adds 1 as desired
-            sumQuaredBoost += Math.pow(currentTerm.getTermWeight(),2);
-            interestingTerms.add(currentTerm);
-        }
-
-        float vectorLength = (float) Math.sqrt(sumQuaredBoost);
-        if(vectorLength <= 0.0){
-            return new ArrayList<RFTerm>();
+        final SeedVector seedVector = keepSeedVector ? new SeedVector() : null;
+        if(executor == null || fieldTermFreq.size() < 2){
+            for(Map.Entry<String, TermWeightMap> entry: fieldTermFreq.entrySet()){
+                interestingTerms.addAll(getMostInterestingTerms(entry.getKey(), entry.getValue(), contentStreamQuery, seedVector));
+            }
         }
-
-        if(this.isNormalizeFieldBoosts()){
-            for(RFTerm term: interestingTerms){
-                term.setVectorLength(vectorLength);
+        else{
+            // one task per field, the terms are added in field order as in the serial case
+            List<Future<List<RFTerm>>> futures = new ArrayList<Future<List<RFTerm>>>(fieldTermFreq.size());
+            for(final Map.Entry<String, TermWeightMap> entry: fieldTermFreq.entrySet()){
+                futures.add(executor.submit(new Callable<List<RFTerm>>() {
+                    @Override
+                    public List<RFTerm> call() throws IOException {
+                        return getMostInterestingTerms(entry.getKey(), entry.getValue(), contentStreamQuery, seedVector);
+                    }
+                }));
+            }
+            for(List<RFTerm> fieldTerms: getAll(futures)){
+                interestingTerms.addAll(fieldTerms);
             }
         }
-        return interestingTerms;
+
+        RFQuery rfResult = new RFQuery(interestingTerms, getMm());
+        rfResult.setPayloadScale(payloadScale);
+        rfResult.setSeedVector(seedVector);
+        return rfResult;
     }
 
     /**
-     * Create a PriorityQueue from a word->tf map.
+     * Compute the top most interesting terms for a field from a term->weight map.
      *
-     * @param words a map of words keyed on the word(String) with Int objects as the values.
+     * The candidate terms are scored once into arrays parallel to the term ids, and only the top
+     * maxQueryTermsPerField are kept in a bounded heap, so RFTerms are only created for the selected terms.
+     *
+     * @param words the accumulated term weights for the field
+     * @param seedVector if not null, the weights of all the scored terms are added to it
+     * @return the selected terms, highest score first
      */
-    private PriorityQueue<RFTerm> createQueue(String fieldName, Map<String, Flt> words, boolean contentStreamQuery) throws IOException {
+    private List<RFTerm> getMostInterestingTerms(String fieldName, TermWeightMap words, boolean contentStreamQuery, SeedVector seedVector) throws IOException {
         // have collected all words in doc and their freqs
         int numDocs = ir.numDocs();
-        FreqQ res = new FreqQ(words.size()); // will order words by score
-
-        for (String word : words.keySet()) { // for every word
-            if(word.trim().length() == 0)
+        final float fieldBoost = contentStreamQuery? this.getStreamFieldBoost(fieldName): this.getFieldBoost(fieldName);
+        final boolean payloadField = isPayloadField(fieldName);
+
+        // filter on the source doc frequencies first, so we only look up the terms we may use
+        int[] candidates = new int[words.size()];
+        int numCandidates = 0;
+        BytesRef word = new BytesRef();
+        for (int id = 0; id < words.size(); id++) { // for every word
+            words.getTerm(id, word);
+            if(isBlank(word))
             {
                 continue;
             }
 
-            float tf = words.get(word).x; // term freq in the source doc
+            float tf = words.getWeight(id); // term freq in the source doc
 
             if (minTermFreq > 0 && tf < minTermFreq) {
                 continue; // filter out words that don't occur enough times in the source
             }
+            candidates[numCandidates++] = id;
+        }
 
-            int docFreq = ir.docFreq(new Term(fieldName, word));
+        TermContext[] termContexts = buildTermContexts(fieldName, words, candidates, numCandidates);
+
+        // score every candidate once, the scores are indexed by the candidate's position
+        final int maxTerms = (maxQueryTermsPerField <= 0) ? numCandidates : Math.min(maxQueryTermsPerField, numCandidates);
+        final int[] docFreqs = new int[numCandidates];
+        final float[] idfs = new float[numCandidates];
+        final float[] scores = new float[numCandidates];
+        final TopTermsQueue queue = new TopTermsQueue(maxTerms, scores);
+        final TermWeightMap seedWeights = seedVector == null ? null : new TermWeightMap();
+        for (int i = 0; i < numCandidates; i++) {
+            final TermContext termContext = termContexts[i];
+            int docFreq = termContext == null ? 0 : termContext.docFreq();
             if (minDocFreq > 0 && docFreq < minDocFreq) {
                 continue; // filter out words that don't occur in enough docs
             }
@@ -1006,16 +1308,38 @@ public final class RelevancyFeedback {
                 continue; // filter out words that occur in too many docs
             }
 
-            float idf = similarity.idf(docFreq, numDocs);
-            final float fieldBoost = contentStreamQuery? this.getStreamFieldBoost(fieldName): this.getFieldBoost(fieldName);
+            float tf = words.getWeight(candidates[i]);
+            // for a payload field the payload score is the accumulated weight. Code could better reflect this admittedly
+            docFreqs[i] = docFreq;
+            idfs[i] = similarity.idf(docFreq, numDocs);
+            final float weight = RFTerm.termWeight(tf, idfs[i], tf, isLogTf(), this.boost, payloadField);
+            scores[i] = fieldBoost * weight;
+            queue.insertWithOverflow(i);
+            if (seedWeights != null) {
+                seedWeights.add(words.getTerm(candidates[i], word), weight);
+            }
+        }
+        if (seedWeights != null) {
+            seedVector.addField(fieldName, seedWeights, fieldBoost, isNormalizeFieldBoosts());
+        }
+
+        // only create terms for the winners, popped lowest score first
+        final RFTerm[] selected = new RFTerm[queue.size()];
+        double sumQuaredBoost = 0.0f;
+        for (int n = selected.length - 1; n >= 0; n--) {
+            final int i = queue.pop();
+            final int id = candidates[i];
+            words.getTerm(id, word);
+            float tf = words.getWeight(id);
+            final TermContext termContext = termContexts[i];
             final RFTerm RFTerm;
-            if(isPayloadField(fieldName)){
+            if(payloadField){
                 RFTerm = new RFTerm(
-                        word,        // the word
+                        BytesRef.deepCopyOf(word),   // the word
                         fieldName,   // the field name
                         tf,          // tf
-                        idf,         // idf
-                        docFreq,     // freq in all docs
+                        idfs[i],     // idf
+                        docFreqs[i], // freq in all docs
                         isLogTf(),
                         fieldBoost,
                         tf,  // this is the payload score if a payload field. Code could better reflect this admittedly
@@ -1025,39 +1349,228 @@ public final class RelevancyFeedback {
             }
             else{
                 RFTerm = new RFTerm(
-                        word,        // the word
+                        BytesRef.deepCopyOf(word),   // the word
                         fieldName,   // the field name
                         tf,          // tf
-                        idf,         // idf
-                        docFreq,     // freq in all docs
+                        idfs[i],     // idf
+                        docFreqs[i], // freq in all docs
                         this.isLogTf(),
                         fieldBoost,
                         this.boost
                 );
             }
-            res.insertWithOverflow(RFTerm);
+            // hand the resolved term states on to the term queries, so they don't seek the terms again
+            RFTerm.setTermContext(termContext);
+
+            // if not boost, boostValue == 1.0, so this just adds 1 as desired
+            sumQuaredBoost += Math.pow(RFTerm.getTermWeight(),2);
+            selected[n] = RFTerm;
+        }
+
+        float vectorLength = (float) Math.sqrt(sumQuaredBoost);
+        if(vectorLength <= 0.0){
+            return new ArrayList<RFTerm>();
+        }
+
+        if(this.isNormalizeFieldBoosts()){
+            for(RFTerm term: selected){
+                term.setVectorLength(vectorLength);
+            }
         }
-        return res;
+        return new ArrayList<RFTerm>(Arrays.asList(selected));
     }
 
-    private BooleanQuery buildMustMatchQuery(Map<String,Map<String, Flt>> fieldValues, boolean mustMatch){
-        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
-        for(Map.Entry<String,Map<String,Flt>> entry: fieldValues.entrySet()){
-            String fieldName = entry.getKey();
-            for(Map.Entry<String,Flt> fieldValue: entry.getValue().entrySet()){
-                String value = fieldValue.getKey();
-                TermQuery tq = new TermQuery(new Term(fieldName, value));
-                if(mustMatch) {
-                    qryBuilder.add(tq, BooleanClause.Occur.MUST);
+    /**
+     * Resolves the candidate terms against the terms dictionary of every segment, visiting each segment once
+     * with the terms in sorted order so that the TermsEnum only ever seeks forwards. Segment statistics found in
+     * the term stats cache, if set, are used instead of seeking.
+     *
+     * @param fieldName the field of the terms
+     * @param words the term weights holding the candidate terms
+     * @param candidates the ids of the candidate terms in words, sorted by this method
+     * @param numCandidates the number of candidates
+     * @return the per-segment term states parallel to candidates, or null entries for terms not in the index
+     */
+    private TermContext[] buildTermContexts(String fieldName, TermWeightMap words, int[] candidates, int numCandidates) throws IOException {
+        words.sortByTerm(candidates, 0, numCandidates);
+
+        final IndexReaderContext topContext = ir.getContext();
+        final TermContext[] termContexts = new TermContext[numCandidates];
+        final BytesRef word = new BytesRef();
+        for (LeafReaderContext leaf : ir.leaves()) {
+            final LeafReader leafReader = leaf.reader();
+            final Terms terms = leafReader.terms(fieldName);
+            if (terms == null) {
+                continue;
+            }
+            // only pulled if a term is not in the cache
+            TermsEnum termsEnum = null;
+            for (int i = 0; i < numCandidates; i++) {
+                words.getTerm(candidates[i], word);
+                if (termStatsCache != null) {
+                    final TermStatsCache.Entry cached = termStatsCache.get(leafReader, fieldName, word);
+                    if (cached != null) {
+                        if (cached != TermStatsCache.MISSING) {
+                            register(termContexts, i, topContext, cached.state, leaf.ord, cached.docFreq, cached.totalTermFreq);
+                        }
+                        continue;
+                    }
                 }
-                else{
-                    qryBuilder.add(tq, BooleanClause.Occur.MUST_NOT);
+                if (termsEnum == null) {
+                    termsEnum = terms.iterator();
                 }
+                if (termsEnum.seekExact(word)) {
+                    final TermState state = termsEnum.termState();
+                    register(termContexts, i, topContext, state, leaf.ord, termsEnum.docFreq(), termsEnum.totalTermFreq());
+                    if (termStatsCache != null) {
+                        termStatsCache.put(leafReader, fieldName, word, state, termsEnum.docFreq(), termsEnum.totalTermFreq());
+                    }
+                } else if (termStatsCache != null) {
+                    termStatsCache.put(leafReader, fieldName, word, null, 0, 0);
+                }
+            }
+        }
+        return termContexts;
+    }
+
+    private static void register(TermContext[] termContexts, int i, IndexReaderContext topContext, TermState state, int ord, int docFreq, long totalTermFreq) {
+        if (termContexts[i] == null) {
+            termContexts[i] = new TermContext(topContext);
+        }
+        termContexts[i].register(state, ord, docFreq, totalTermFreq);
+    }
+
+    /**
+     * One term filter per must match value, as the docs have to match every value. Each resolves to a DocSet the
+     * searcher caches in its filterCache, so the same values are cheap for any seeds sharing them.
+     */
+    private List<Query> buildMustMatchFilters(Map<String, TermWeightMap> fieldValues){
+        List<Query> filters = new ArrayList<Query>();
+        BytesRef value = new BytesRef();
+        for(Map.Entry<String, TermWeightMap> entry: fieldValues.entrySet()){
+            String fieldName = entry.getKey();
+            TermWeightMap values = entry.getValue();
+            for(int id = 0; id < values.size(); id++){
+                values.getTerm(id, value);
+                filters.add(new TermQuery(new Term(fieldName, BytesRef.deepCopyOf(value))));
             }
         }
+        return filters;
+    }
+
+    /**
+     * A single negated term set filter for all the must NOT match values, so the docs with any of them are one cached
+     * DocSet removed with a single bitset operation
+     *
+     * @return the filter, or null if there are no values
+     */
+    private Query buildMustNOTMatchFilter(Map<String, TermWeightMap> fieldValues){
+        List<Term> terms = new ArrayList<Term>();
+        BytesRef value = new BytesRef();
+        for(Map.Entry<String, TermWeightMap> entry: fieldValues.entrySet()){
+            String fieldName = entry.getKey();
+            TermWeightMap values = entry.getValue();
+            for(int id = 0; id < values.size(); id++){
+                values.getTerm(id, value);
+                terms.add(new Term(fieldName, BytesRef.deepCopyOf(value)));
+            }
+        }
+        if(terms.isEmpty()){
+            return null;
+        }
+        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
+        qryBuilder.add(new TermsQuery(terms), BooleanClause.Occur.MUST_NOT);
         return qryBuilder.build();
     }
 
+    /**
+     * Scores documents by the cosine similarity of their term weights to the seed vector, the weights of every term
+     * scored when the RF terms were selected. The terms of each document are extracted from the fields of the seed
+     * vector as for a seed (so from the seed terms cache if set), and weighted as the seed terms are: by tf-idf, the
+     * field boost and, if field boosts are normalized, the field's vector length. The idfs come from the same term
+     * states as the seed terms', so from the term stats cache if set, and are resolved once for all the documents.
+     *
+     * @param seedVector the seed term weights, see {@link #setKeepSeedVector(boolean)}
+     * @param docNums the ids of the documents to score
+     * @return the cosine similarity of each document, parallel to docNums
+     */
+    float[] cosineSimilarity(SeedVector seedVector, int[] docNums) throws IOException {
+        final float[] similarities = new float[docNums.length];
+        if(seedVector == null || seedVector.getNormSquared() <= 0.0){
+            return similarities;
+        }
+
+        final String[] fields = seedVector.getFieldNames().toArray(new String[seedVector.getFieldNames().size()]);
+        final int numDocs = ir.numDocs();
+        // similar documents share most of their terms, so the idfs are resolved once for all of them
+        final Map<String, TermWeightMap> idfs = new HashMap<String, TermWeightMap>();
+        final BytesRef term = new BytesRef();
+        for(int d = 0; d < docNums.length; d++){
+            final Map<String, TermWeightMap> docTerms = retrieveTerms(docNums[d], fields, null);
+            double dot = 0.0;
+            double docNorm = 0.0;
+            for(String fieldName: fields){
+                final TermWeightMap words = docTerms.get(fieldName);
+                if(words == null){
+                    continue;
+                }
+                TermWeightMap fieldIdfs = idfs.get(fieldName);
+                if(fieldIdfs == null){
+                    fieldIdfs = new TermWeightMap();
+                    idfs.put(fieldName, fieldIdfs);
+                }
+                resolveIdfs(fieldName, words, fieldIdfs, numDocs);
+
+                final boolean payloadField = isPayloadField(fieldName);
+                double fieldDot = 0.0;
+                double fieldNorm = 0.0;
+                for(int id = 0; id < words.size(); id++){
+                    words.getTerm(id, term);
+                    final float tf = words.getWeight(id);
+                    final float idf = fieldIdfs.getWeight(fieldIdfs.find(term));
+                    final float weight = RFTerm.termWeight(tf, idf, tf, isLogTf(), this.boost, payloadField);
+                    fieldNorm += weight * weight;
+                    fieldDot += seedVector.getWeight(fieldName, term) * weight;
+                }
+                if(fieldNorm <= 0.0){
+                    continue;
+                }
+                double fieldScale = seedVector.getFieldBoost(fieldName);
+                if(isNormalizeFieldBoosts()){
+                    fieldScale /= Math.sqrt(fieldNorm);
+                }
+                dot += fieldDot * fieldScale;
+                docNorm += fieldNorm * fieldScale * fieldScale;
+            }
+            if(docNorm > 0.0){
+                similarities[d] = (float) (dot / Math.sqrt(seedVector.getNormSquared() * docNorm));
+            }
+        }
+        return similarities;
+    }
+
+    /**
+     * Adds the idfs of the terms of words not yet in idfs, resolving them with {@link #buildTermContexts}
+     */
+    private void resolveIdfs(String fieldName, TermWeightMap words, TermWeightMap idfs, int numDocs) throws IOException {
+        final int[] missing = new int[words.size()];
+        int numMissing = 0;
+        final BytesRef term = new BytesRef();
+        for(int id = 0; id < words.size(); id++){
+            if(idfs.find(words.getTerm(id, term)) < 0){
+                missing[numMissing++] = id;
+            }
+        }
+        if(numMissing == 0){
+            return;
+        }
+        final TermContext[] termContexts = buildTermContexts(fieldName, words, missing, numMissing);
+        for(int i = 0; i < numMissing; i++){
+            final int docFreq = termContexts[i] == null ? 0 : termContexts[i].docFreq();
+            idfs.add(words.getTerm(missing[i], term), similarity.idf(docFreq, numDocs));
+        }
+    }
+
     /**
      * Describe the parameters that control how the "more queryFromDocuments this" query is formed.
      */
@@ -1086,47 +1599,86 @@ public final class RelevancyFeedback {
      * @param fields the list of field of the lucene document from which to extract terms
      * @param fieldToTermFreqMap data structure to populate with term frequencies
      */
-    public Map<String, Map<String, Flt>> retrieveTerms(int docNum, String[] fields, Map<String, Map<String, Flt>> fieldToTermFreqMap) throws IOException {
+    public Map<String, TermWeightMap> retrieveTerms(int docNum, String[] fields, Map<String, TermWeightMap> fieldToTermFreqMap) throws IOException {
+        return retrieveTerms(docNum, fields, fieldToTermFreqMap, null);
+    }
+
+    /**
+     * Find words for a more-queryFromDocuments-this query former, keeping only the top {@link #getMaxTermsPerSeed()}
+     * terms per field if seedFieldTerms is not null.
+     *
+     * @param seedFieldTerms scratch space for the terms of a single field of the seed, or null to keep all the terms
+     */
+    private Map<String, TermWeightMap> retrieveTerms(int docNum, String[] fields, Map<String, TermWeightMap> fieldToTermFreqMap, TermWeightMap seedFieldTerms) throws IOException {
 
         if(fieldToTermFreqMap == null) {
-            fieldToTermFreqMap = new HashMap<String, Map<String, Flt>>();
+            fieldToTermFreqMap = new HashMap<String, TermWeightMap>();
         }
 
         if(fields == null || fields.length == 0){
             return fieldToTermFreqMap;
         }
 
-        final Fields vectors = ir.getTermVectors(docNum);
-        final Document document = ir.document(docNum);
+        // the terms of fields in the seed terms cache don't need the term vectors or the stored document
+        LeafReader leafReader = null;
+        int leafDoc = -1;
+        byte[][] cachedTerms = null;
+        List<String> uncachedFields = Arrays.asList(fields);
+        if (seedTermsCache != null) {
+            final LeafReaderContext leaf = ir.leaves().get(ReaderUtil.subIndex(docNum, ir.leaves()));
+            leafReader = leaf.reader();
+            leafDoc = docNum - leaf.docBase;
+            cachedTerms = new byte[fields.length][];
+            uncachedFields = new ArrayList<String>(fields.length);
+            for (int i = 0; i < fields.length; i++) {
+                cachedTerms[i] = seedTermsCache.get(leafReader, leafDoc, fields[i], isPayloadField(fields[i]), payloadScale, maxNumTokensParsedPerField);
+                if (cachedTerms[i] == null) {
+                    uncachedFields.add(fields[i]);
+                }
+            }
+        }
 
-        for (String fieldName : fields) {
+        final Fields vectors = uncachedFields.isEmpty() ? null : ir.getTermVectors(docNum);
 
-            Map<String, Flt> termFreqMap = null;
-            if(fieldToTermFreqMap.containsKey(fieldName)){
-                termFreqMap = fieldToTermFreqMap.get(fieldName);
+        // only read the stored fields we have to analyze, and skip the stored document altogether if there are none
+        Set<String> storedFieldsToLoad = null;
+        for (String fieldName : uncachedFields) {
+            if (needsStoredField(vectors, fieldName)) {
+                if (storedFieldsToLoad == null) {
+                    storedFieldsToLoad = new HashSet<String>();
+                }
+                storedFieldsToLoad.add(fieldName);
             }
-            else{
-                termFreqMap = new HashMap<String, Flt>();
-                fieldToTermFreqMap.put(fieldName, termFreqMap);
+        }
+        final Document document = storedFieldsToLoad == null ? null : ir.document(docNum, storedFieldsToLoad);
+
+        // the unfiltered terms of a field, as cached
+        final TermWeightMap rawTerms = seedTermsCache == null ? null : new TermWeightMap();
+        for (int i = 0; i < fields.length; i++) {
+            final String fieldName = fields[i];
+
+            final TermWeightMap fieldTermFreqMap = getOrCreateTermWeights(fieldToTermFreqMap, fieldName);
+            TermWeightMap termFreqMap = fieldTermFreqMap;
+            if (seedFieldTerms != null) {
+                seedFieldTerms.clear();
+                termFreqMap = seedFieldTerms;
             }
 
-            Terms vector = null;
-            if (vectors != null) {
-                vector = vectors.terms(fieldName);
+            if (rawTerms == null) {
+                extractTermWeights(vectors, document, fieldName, termFreqMap, true);
+            } else {
+                rawTerms.clear();
+                if (cachedTerms[i] != null) {
+                    SeedTermsCache.read(cachedTerms[i], rawTerms);
+                } else {
+                    extractTermWeights(vectors, document, fieldName, rawTerms, false);
+                    seedTermsCache.put(leafReader, leafDoc, fieldName, isPayloadField(fieldName), payloadScale, maxNumTokensParsedPerField, rawTerms);
+                }
+                addTermWeights(termFreqMap, rawTerms);
             }
 
-            // field does not store term vector info
-            // even if term vectors enabled, need to extract payload from regular field reader
-            if (vector == null || isPayloadField(fieldName)) {
-                IndexableField docFields[] = document.getFields(fieldName);
-                for (IndexableField field : docFields) {
-                    final String stringValue = field.stringValue();
-                    if (stringValue != null) {
-                        addTermWeights(new StringReader(stringValue), termFreqMap, fieldName);
-                    }
-                }
-            } else {
-                addTermWeights(termFreqMap, vector);
+            if (seedFieldTerms != null) {
+                addTopTermWeights(fieldTermFreqMap, seedFieldTerms, maxTermsPerSeed);
             }
         }
 
@@ -1134,33 +1686,106 @@ public final class RelevancyFeedback {
     }
 
     /**
-     * Adds terms and frequencies found in vector into the Map termWeightMap
+     * Adds the weights of the terms of the field from its term vector, or by analyzing its stored value
+     *
+     * @param filterNoise whether to drop the noise words, see {@link #isNoiseWord(BytesRef)}
+     */
+    private void extractTermWeights(Fields vectors, Document document, String fieldName, TermWeightMap termFreqMap, boolean filterNoise) throws IOException {
+        if (needsStoredField(vectors, fieldName)) {
+            IndexableField docFields[] = document.getFields(fieldName);
+            for (IndexableField field : docFields) {
+                final String stringValue = field.stringValue();
+                if (stringValue != null) {
+                    addTermWeights(new StringReader(stringValue), termFreqMap, fieldName, filterNoise);
+                }
+            }
+        } else {
+            addTermWeights(termFreqMap, vectors.terms(fieldName), isPayloadField(fieldName), filterNoise);
+        }
+    }
+
+    /**
+     * Adds the terms of source that are not noise words to termWeightMap
+     */
+    private void addTermWeights(TermWeightMap termWeightMap, TermWeightMap source) {
+        final BytesRef term = new BytesRef();
+        for (int id = 0; id < source.size(); id++) {
+            if (isNoiseWord(source.getTerm(id, term))) {
+                continue;
+            }
+            termWeightMap.add(term, source.getWeight(id));
+        }
+    }
+
+    /**
+     * Whether the terms of the field have to be extracted by analyzing its stored value
+     *
+     * @param vectors the term vectors of the document, or null if it has none
+     */
+    private boolean needsStoredField(Fields vectors, String fieldName) throws IOException {
+        // field does not store term vector info
+        if (vectors == null || vectors.terms(fieldName) == null) {
+            return true;
+        }
+        // the payloads are only in the term vector if it was indexed with them
+        return isPayloadField(fieldName) && !vectors.terms(fieldName).hasPayloads();
+    }
+
+    /**
+     * Adds the maxTerms highest weighted terms of source to target
+     */
+    private static void addTopTermWeights(TermWeightMap target, TermWeightMap source, int maxTerms) {
+        final int size = source.size();
+        if (size <= maxTerms) {
+            target.addAll(source);
+            return;
+        }
+        final float[] weights = new float[size];
+        final TopTermsQueue queue = new TopTermsQueue(maxTerms, weights);
+        for (int id = 0; id < size; id++) {
+            weights[id] = source.getWeight(id);
+            queue.insertWithOverflow(id);
+        }
+        final BytesRef term = new BytesRef();
+        while (queue.size() > 0) {
+            final int id = queue.pop();
+            target.add(source.getTerm(id, term), weights[id]);
+        }
+    }
+
+    /**
+     * Adds terms and frequencies found in vector into the Map termWeightMap. For a payload field the weight of a term is
+     * the sum of the payloads of its positions (1.0 for a position without one), as when analyzing the stored value.
      *
      * @param termWeightMap a Map of terms and their weights
      * @param vector List of terms and their weights for a doc/field
+     * @param payloadField whether to weight the terms by their payloads
+     * @param filterNoise whether to drop the noise words
      */
-    private void addTermWeights(Map<String, Flt> termWeightMap, Terms vector) throws IOException {
+    private void addTermWeights(TermWeightMap termWeightMap, Terms vector, boolean payloadField, boolean filterNoise) throws IOException {
         final TermsEnum termsEnum = vector.iterator();
-        CharsRefBuilder spare = new CharsRefBuilder();
+        PostingsEnum postings = null;
         BytesRef text;
         while((text = termsEnum.next()) != null) {
-            spare.copyUTF8Bytes(text);
-            final String term = spare.toString();
-            if (isNoiseWord(term)) {
+            if (filterNoise && isNoiseWord(text)) {
+                continue;
+            }
+            if (!payloadField) {
+                // increment frequency
+                termWeightMap.add(text, (int) termsEnum.totalTermFreq());
                 continue;
             }
-            final int freq = (int) termsEnum.totalTermFreq();
-
-            //TODO try this
-            //termsEnum.docsAndPositions(.....).getPayload()
 
-            // increment frequency
-            Flt cnt = termWeightMap.get(term);
-            if (cnt == null) {
-                termWeightMap.put(term, new Flt(freq));
-            } else {
-                cnt.x += freq;
+            // the vector holds the one document, so its positions and their payloads are read in a single pass
+            postings = termsEnum.postings(postings, PostingsEnum.PAYLOADS);
+            postings.nextDoc();
+            float weight = 0.0f;
+            for (int i = postings.freq(); i > 0; i--) {
+                postings.nextPosition();
+                final BytesRef payload = postings.getPayload();
+                weight += payload == null ? 1.0f : PayloadCodec.decode(payload, payloadScale);
             }
+            termWeightMap.add(text, weight);
         }
     }
 
@@ -1170,47 +1795,44 @@ public final class RelevancyFeedback {
      * @param reader a source of text to be tokenized
      * @param termWeightMap a Map of terms and their weights
      * @param fieldName Used by analyzer for any special per-field analysis
+     * @param filterNoise whether to drop the noise words
      */
-    private void addTermWeights(Reader reader, Map<String, Flt> termWeightMap, String fieldName)
+    private void addTermWeights(Reader reader, TermWeightMap termWeightMap, String fieldName, boolean filterNoise)
             throws IOException {
         if (analyzer == null) {
             throw new UnsupportedOperationException("To use RelevancyFeedback without " +
                     "term vectors, you must provide an Analyzer");
         }
 
+        final boolean payloadField = isPayloadField(fieldName);
         TokenStream ts = analyzer.tokenStream(fieldName, reader);
         try {
             int tokenCount = 0;
             // for every token
-            CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
             PayloadAttribute payloadAttr = ts.addAttribute(PayloadAttribute.class);
 
             ts.reset();
             while (ts.incrementToken()) {
-                String word = termAtt.toString();
+                BytesRef word = termAtt.getBytesRef();
                 tokenCount++;
                 if (tokenCount > maxNumTokensParsedPerField) {
                     break;
                 }
-                if(word.trim().length() == 0){
+                if(isBlank(word)){
                     continue;
                 }
-                if (isNoiseWord(word)) {
+                if (filterNoise && isNoiseWord(word)) {
                     continue;
                 }
 
                 BytesRef payload = payloadAttr.getPayload();
                 float tokenWeight = 1.0f; // 1.0 or payload if set and a payload field
-                if(isPayloadField(fieldName) && payload != null){
-                    tokenWeight = PayloadHelper.decodeFloat(payload.bytes, payload.offset);
+                if(payloadField && payload != null){
+                    tokenWeight = PayloadCodec.decode(payload, payloadScale);
                 }
                 // increment frequency
-                Flt termWeight = termWeightMap.get(word);
-                if (termWeight == null) {
-                    termWeightMap.put(word, new Flt(tokenWeight));
-                } else {
-                    termWeight.x += tokenWeight;
-                }
+                termWeightMap.add(word, tokenWeight);
             }
             ts.end();
         } finally {
@@ -1221,18 +1843,54 @@ public final class RelevancyFeedback {
     /**
      * determines if the passed term is likely to be of interest in "more queryFromDocuments" comparisons
      *
-     * @param term The word being considered
+     * @param term The (UTF-8) word being considered
      * @return true if should be ignored, false if should be used in further analysis
      */
-    private boolean isNoiseWord(String term) {
-        int len = term.length();
-        if (minWordLen > 0 && len < minWordLen) {
-            return true;
+    private boolean isNoiseWord(BytesRef term) {
+        if (minWordLen > 0 || maxWordLen > 0) {
+            int len = utf16Length(term);
+            if (minWordLen > 0 && len < minWordLen) {
+                return true;
+            }
+            if (maxWordLen > 0 && len > maxWordLen) {
+                return true;
+            }
         }
-        if (maxWordLen > 0 && len > maxWordLen) {
-            return true;
+        // the stop word set is keyed on strings, so only decode the term if there is one
+        return stopWords != null && stopWords.contains(term.utf8ToString());
+    }
+
+    /**
+     * The length of the term in UTF-16 code units (i.e. String.length()), computed from the UTF-8 bytes
+     */
+    private static int utf16Length(BytesRef term) {
+        int len = 0;
+        final int end = term.offset + term.length;
+        for (int i = term.offset; i < end; i++) {
+            final int b = term.bytes[i] & 0xFF;
+            // skip continuation bytes (10xxxxxx), 4 byte sequences are a surrogate pair
+            if (b < 0x80) {
+                len++;
+            } else if (b >= 0xF0) {
+                len += 2;
+            } else if (b >= 0xC0) {
+                len++;
+            }
         }
-        return stopWords != null && stopWords.contains(term);
+        return len;
+    }
+
+    /**
+     * Equivalent of String.trim().length() == 0 over the UTF-8 bytes - trim only strips chars <= ' '
+     */
+    private static boolean isBlank(BytesRef term) {
+        final int end = term.offset + term.length;
+        for (int i = term.offset; i < end; i++) {
+            if ((term.bytes[i] & 0xFF) > ' ') {
+                return false;
+            }
+        }
+        return true;
     }
 
     private boolean isPayloadField(String fieldName){
@@ -1240,28 +1898,98 @@ public final class RelevancyFeedback {
     }
 
     /**
-     * PriorityQueue that orders words by score.
+     * The term weights extracted from a set of seed documents
      */
-    private static class FreqQ extends PriorityQueue<RFTerm> {
-        FreqQ(int s) {
-            super(s);
+    private static final class SeedTerms {
+        final Map<String, TermWeightMap> fieldTermFreq = new HashMap<String, TermWeightMap>();
+        final Map<String, TermWeightMap> mustMatchTerms = new HashMap<String, TermWeightMap>();
+        final Map<String, TermWeightMap> mustNOTMatchTerms = new HashMap<String, TermWeightMap>();
+
+        void addAll(SeedTerms other) {
+            addAll(fieldTermFreq, other.fieldTermFreq);
+            addAll(mustMatchTerms, other.mustMatchTerms);
+            addAll(mustNOTMatchTerms, other.mustNOTMatchTerms);
         }
 
-        @Override
-        protected boolean lessThan(RFTerm aa, RFTerm bb) {
-            return aa.getFinalScore() > bb.getFinalScore();
+        private static void addAll(Map<String, TermWeightMap> target, Map<String, TermWeightMap> source) {
+            for(Map.Entry<String, TermWeightMap> entry: source.entrySet()){
+                getOrCreateTermWeights(target, entry.getKey()).addAll(entry.getValue());
+            }
         }
     }
 
     /**
-     * Use for frequencies and to avoid renewing Integers.
+     * Bounded min-heap of candidate indexes ordered by their precomputed scores, so the root is the lowest scoring
+     * term kept so far.
      */
+    private static final class TopTermsQueue {
+        private final int[] heap;
+        private final float[] scores;
+        private final int maxSize;
+        private int size = 0;
+
+        TopTermsQueue(int maxSize, float[] scores) {
+            this.maxSize = maxSize;
+            this.scores = scores;
+            // 1-based heap
+            this.heap = new int[maxSize + 1];
+        }
+
+        int size() {
+            return size;
+        }
 
-    private static class Flt {
-        float x;
+        /**
+         * Adds the candidate if the queue is not full, or replaces the lowest scoring candidate if it scores higher
+         */
+        void insertWithOverflow(int candidate) {
+            if (size < maxSize) {
+                heap[++size] = candidate;
+                upHeap(size);
+            } else if (size > 0 && scores[candidate] > scores[heap[1]]) {
+                heap[1] = candidate;
+                downHeap(1);
+            }
+        }
 
-        Flt(float x) {
-            this.x = x;
+        /**
+         * Removes and returns the lowest scoring candidate
+         */
+        int pop() {
+            final int result = heap[1];
+            heap[1] = heap[size--];
+            downHeap(1);
+            return result;
+        }
+
+        private void upHeap(int i) {
+            final int node = heap[i];
+            final float score = scores[node];
+            int parent = i >>> 1;
+            while (parent > 0 && score < scores[heap[parent]]) {
+                heap[i] = heap[parent];
+                i = parent;
+                parent = i >>> 1;
+            }
+            heap[i] = node;
+        }
+
+        private void downHeap(int i) {
+            final int node = heap[i];
+            final float score = scores[node];
+            int child = i << 1;
+            while (child <= size) {
+                if (child < size && scores[heap[child + 1]] < scores[heap[child]]) {
+                    child++;
+                }
+                if (scores[heap[child]] >= score) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+                child = i << 1;
+            }
+            heap[i] = node;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,56 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one thread pool shared by the RelevancyFeedback handlers of every core, so the threads of the handlers don't
+ * add up. It has at most as many threads as the largest number any handler asked for, bounded by the number of
+ * processors, and a bounded queue: when the queue is full the request thread runs the task itself. The pool is
+ * reference counted by the handlers using it, and shut down when the last of them releases it.
+ */
+final class RelevancyFeedbackExecutor {
+
+    static final int MAX_QUEUED_TASKS = 1024;
+
+    private static ThreadPoolExecutor executor = null;
+    private static int refCount = 0;
+
+    private RelevancyFeedbackExecutor() {
+    }
+
+    /**
+     * @param threads the number of threads the handler asks for
+     * @return the shared pool, with at least min(threads, processors) threads
+     */
+    static synchronized ExecutorService acquire(int threads) {
+        final int poolSize = Math.max(1, Math.min(threads, Runtime.getRuntime().availableProcessors()));
+        if (executor == null) {
+            executor = new ExecutorUtil.MDCAwareThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED_TASKS), new DefaultSolrThreadFactory("relevancyFeedback"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        } else if (poolSize > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(poolSize);
+            executor.setCorePoolSize(poolSize);
+        }
+        refCount++;
+        return executor;
+    }
+
+    /**
+     * Releases a pool returned by {@link #acquire(int)}, shutting it down if no other handler uses it
+     */
+    static synchronized void release(ExecutorService released) {
+        if (released != executor || --refCount > 0) {
+            return;
+        }
+        ExecutorUtil.shutdownAndAwaitTermination(executor);
+        executor = null;
+    }
+}
@@ -23,6 +23,8 @@ import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.*;
 import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.handler.component.FacetComponent;
 import org.apache.solr.request.SimpleFacets;
@@ -31,6 +33,7 @@ import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.*;
 import org.apache.solr.util.SolrPluginUtils;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import org.dice.solrenhancements.JarVersion;
 
 import org.slf4j.Logger;
@@ -41,6 +44,7 @@ import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Solr RelevancyFeedback --
@@ -49,17 +53,66 @@ import java.util.*;
  *
  * @since solr 1.3
  */
-public class RelevancyFeedbackHandler extends RequestHandlerBase
+public class RelevancyFeedbackHandler extends RequestHandlerBase implements SolrCoreAware
 {
     private final static String EDISMAX = ExtendedDismaxQParserPlugin.NAME;
     private String version = null;
 
     private static final Logger log = LoggerFactory.getLogger( RelevancyFeedbackHandler.class );
 
+    // init arg for the number of entries of the term stats cache shared by all requests, 0 (the default) to disable it
+    private final static String TERM_STATS_CACHE_SIZE = "termStatsCacheSize";
+    private TermStatsCache termStatsCache = null;
+
+    // init arg for the size in MB of the off heap seed terms cache shared by all requests, 0 (the default) to disable it
+    private final static String SEED_TERMS_CACHE_SIZE_MB = "seedTermsCacheSizeMB";
+    private SeedTermsCache seedTermsCache = null;
+
+    // init arg for the number of threads used to extract and select the terms of a request, 0 or 1 to run serially.
+    // The threads come from a pool shared by the handlers of every core, see RelevancyFeedbackExecutor
+    private final static String THREADS = "threads";
+    private int threads = 0;
+    private ExecutorService executor = null;
+
+    // the most documents matched by rf.q that are considered as seeds
+    private final static int MAX_SEED_WINDOW = 10000;
 
     @Override
     public void init(NamedList args) {
         super.init(args);
+
+        Object termStatsCacheSize = args == null ? null : args.get(TERM_STATS_CACHE_SIZE);
+        if (termStatsCacheSize != null && Integer.parseInt(termStatsCacheSize.toString()) > 0) {
+            termStatsCache = new TermStatsCache(Integer.parseInt(termStatsCacheSize.toString()));
+        }
+
+        Object seedCacheSizeMB = args == null ? null : args.get(SEED_TERMS_CACHE_SIZE_MB);
+        if (seedCacheSizeMB != null && Long.parseLong(seedCacheSizeMB.toString()) > 0) {
+            seedTermsCache = new SeedTermsCache(Long.parseLong(seedCacheSizeMB.toString()) * 1024 * 1024);
+        }
+
+        Object numThreads = args == null ? null : args.get(THREADS);
+        if (numThreads != null) {
+            threads = Integer.parseInt(numThreads.toString());
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        if (threads < 2) {
+            return;
+        }
+        executor = RelevancyFeedbackExecutor.acquire(threads);
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+                RelevancyFeedbackExecutor.release(executor);
+            }
+        });
     }
 
     @Override
@@ -122,7 +175,10 @@ public class RelevancyFeedbackHandler extends RequestHandlerBase
             throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
         }
 
-        RFHelper rfhelper = new RFHelper( params, searcher, uniqueKeyField, rfQueryParser );
+        RFHelper rfhelper = new RFHelper( params, searcher, rfQueryParser );
+        rfhelper.getRelevancyFeedback().setTermStatsCache(termStatsCache);
+        rfhelper.getRelevancyFeedback().setExecutor(executor, threads);
+        rfhelper.getRelevancyFeedback().setSeedTermsCache(seedTermsCache);
 
         // Hold on to the interesting terms if relevant
         RFParams.TermStyle termStyle = RFParams.TermStyle.get(params.get(RFParams.INTERESTING_TERMS));
@@ -219,8 +275,18 @@ public class RelevancyFeedbackHandler extends RequestHandlerBase
 
         boolean includeMatch = params.getBool(RFParams.MATCH_INCLUDE, true);
         int matchOffset = params.getInt(RFParams.MATCH_OFFSET, 0);
+        int maxSeeds = Math.min(params.getInt(RFParams.MAX_SEEDS, MAX_SEED_WINDOW), MAX_SEED_WINDOW);
+        RFParams.SeedSampling sampling = RFParams.SeedSampling.get(params.get(RFParams.SEED_SAMPLING));
+
         // Find the base match
-        DocList match = searcher.getDocList(query, targetFqFilters, null, matchOffset, 10000, flags); // only get the first one...
+        DocList match;
+        if (sampling == RFParams.SeedSampling.TOP) {
+            match = searcher.getDocList(query, targetFqFilters, null, matchOffset, maxSeeds, flags);
+        } else {
+            // sample the seeds from the whole window, using the scores as the weights
+            DocList window = searcher.getDocList(query, targetFqFilters, null, matchOffset, MAX_SEED_WINDOW, flags | SolrIndexSearcher.GET_SCORES);
+            match = sampleSeeds(window, maxSeeds, sampling, new Random(q.hashCode()));
+        }
         if(match.matches() == 0 && userQuery == null){
             throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
                     String.format("RelevancyFeedback was unable to find any documents matching the query: '%s'.", q));
@@ -239,6 +305,52 @@ public class RelevancyFeedbackHandler extends RequestHandlerBase
         return null;
     }
 
+    /**
+     * Samples up to maxSeeds documents from the matches, keeping them in rank order. Weighted sampling uses the
+     * Efraimidis-Spirakis method, keeping the documents with the largest random keys u^(1/score).
+     */
+    private DocList sampleSeeds(DocList window, int maxSeeds, RFParams.SeedSampling sampling, Random random) {
+        final int len = window.size();
+        if (len <= maxSeeds) {
+            return window;
+        }
+
+        final int[] docs = new int[len];
+        final float[] scores = new float[len];
+        final double[] keys = new double[len];
+        DocIterator iterator = window.iterator();
+        for (int i = 0; i < len; i++) {
+            docs[i] = iterator.nextDoc();
+            scores[i] = iterator.score();
+            final double u = random.nextDouble();
+            // compare logs, u^(1/w) underflows for small weights
+            keys[i] = sampling == RFParams.SeedSampling.WEIGHTED ? Math.log(u) / scores[i] : u;
+        }
+
+        // the rank of the documents with the top maxSeeds keys
+        Integer[] ranks = new Integer[len];
+        for (int i = 0; i < len; i++) {
+            ranks[i] = i;
+        }
+        Arrays.sort(ranks, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer r1, Integer r2) {
+                return Double.compare(keys[r2], keys[r1]);
+            }
+        });
+        Arrays.sort(ranks, 0, maxSeeds);
+
+        final int[] seedDocs = new int[maxSeeds];
+        final float[] seedScores = new float[maxSeeds];
+        float maxScore = 0.0f;
+        for (int i = 0; i < maxSeeds; i++) {
+            seedDocs[i] = docs[ranks[i]];
+            seedScores[i] = scores[ranks[i]];
+            maxScore = Math.max(maxScore, seedScores[i]);
+        }
+        return new DocSlice(0, maxSeeds, seedDocs, seedScores, window.matches(), maxScore);
+    }
+
     private List<InterestingTerm> extractInterestingTerms(List<RFTerm> RFTerms){
         List<InterestingTerm> terms = new ArrayList<InterestingTerm>();
         for( RFTerm term : RFTerms) {
@@ -381,6 +493,18 @@ public class RelevancyFeedbackHandler extends RequestHandlerBase
         return "Dice custom RelevancyFeedback handler";
     }
 
+    @Override
+    public NamedList<Object> getStatistics() {
+        NamedList<Object> lst = super.getStatistics();
+        if (termStatsCache != null) {
+            lst.add("termStatsCache", termStatsCache.getStatistics());
+        }
+        if (seedTermsCache != null) {
+            lst.add("seedTermsCache", seedTermsCache.getStatistics());
+        }
+        return lst;
+    }
+
     @Override
     public String getSource() {
         return "$URL$";
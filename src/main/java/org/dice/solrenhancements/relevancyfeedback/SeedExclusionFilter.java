@@ -0,0 +1,77 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+
+import java.io.IOException;
+
+/**
+ * Post filter that drops the seed documents of an RF query from its results.
+ *
+ * The seeds are held as top level docids taken straight from the seed DocList, so excluding them needs no stored
+ * fields and adds no clauses to the query. The docids are only valid for the searcher the seeds were found with,
+ * and the filter is never cached in the filter cache. It is part of the queryResultCache key of the RF query though,
+ * which is per searcher, so filters over the same seeds are equal, and repeating an RF request hits the cache.
+ */
+public class SeedExclusionFilter extends ExtendedQueryBase implements PostFilter {
+
+    private final FixedBitSet seeds;
+    private final int hash;
+
+    /**
+     * @param seeds the top level docids of the seed documents, not to be changed afterwards
+     */
+    public SeedExclusionFilter(FixedBitSet seeds) {
+        this.seeds = seeds;
+        this.hash = 31 * SeedExclusionFilter.class.hashCode() + seeds.hashCode();
+    }
+
+    @Override
+    public boolean getCache() {
+        return false;
+    }
+
+    @Override
+    public int getCost() {
+        // run as a post filter
+        return Math.max(super.getCost(), 100);
+    }
+
+    @Override
+    public DelegatingCollector getFilterCollector(IndexSearcher searcher) {
+        return new DelegatingCollector() {
+            @Override
+            public void collect(int doc) throws IOException {
+                if (!seeds.get(docBase + doc)) {
+                    super.collect(doc);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString(String field) {
+        return "-seeds(" + seeds.cardinality() + ")";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final SeedExclusionFilter other = (SeedExclusionFilter) obj;
+        // only compare the whole bit sets if the hashes match
+        return hash == other.hash && seeds.equals(other.seeds);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,323 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.util.NamedList;
+import org.dice.solrenhancements.tokenfilters.PayloadCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of the term weights extracted from a field of a seed document, shared across RF requests.
+ *
+ * Entries are keyed on the segment core and the segment's docid, so they survive reopening the searcher and are
+ * dropped when the segment core is closed after a merge, through the keys tracked per core. The weights are cached
+ * as extracted, before the word length and stop word filters, as those can change per request. They do depend on
+ * whether the field is read as a payload field (and the scale its payloads are decoded with) and on the token limit
+ * for analyzed fields, so those are part of the key.
+ *
+ * Each entry holds the prefix compressed terms in extraction order followed by their weights. Whole number weights
+ * (term frequencies) are stored exactly as vInts. Other weights, such as summed payloads, are quantized to 16 bit
+ * fractions of the entry's largest weight as a short {@link PayloadCodec} does, unless some are negative, in which
+ * case they are stored as float bits.
+ *
+ * The entries are written to pooled off heap pages, see {@link OffHeapPages}, so the cache itself only holds the
+ * small slots addressing them, and is bounded by the size of the chunks the entries take. Entries larger than a page,
+ * or that no page can be freed for, are not cached.
+ */
+public final class SeedTermsCache {
+
+    private static final byte INTEGER_WEIGHTS = 1;
+    private static final byte QUANTIZED_WEIGHTS = 2;
+    private static final byte FLOAT_WEIGHTS = 3;
+
+    private final Cache<Key, OffHeapPages.Slot> cache;
+    private final OffHeapPages pages;
+    // entries that were not cached, as they were larger than a page or no page could be freed for them
+    private final AtomicLong rejected = new AtomicLong();
+    // the cached keys of each segment core, to evict them when the core is closed
+    private final ConcurrentHashMap<Object, Set<Key>> coreKeys = new ConcurrentHashMap<Object, Set<Key>>();
+
+    /**
+     * @param maxBytes the maximum size of the off heap pages the entries are written to
+     */
+    public SeedTermsCache(long maxBytes) {
+        this(maxBytes, OffHeapPages.DEFAULT_PAGE_SIZE);
+    }
+
+    SeedTermsCache(long maxBytes, int pageSize) {
+        this.pages = new OffHeapPages(maxBytes, pageSize);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, OffHeapPages.Slot>() {
+                    @Override
+                    public int weigh(Key key, OffHeapPages.Slot value) {
+                        return value.chunkSize;
+                    }
+                })
+                .removalListener(new RemovalListener<Key, OffHeapPages.Slot>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, OffHeapPages.Slot> notification) {
+                        final OffHeapPages.Slot slot = notification.getValue();
+                        if (slot.release()) {
+                            pages.free(slot);
+                        }
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            final Set<Key> keys = coreKeys.get(notification.getKey().coreKey);
+                            if (keys != null) {
+                                keys.remove(notification.getKey());
+                            }
+                        }
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return a copy of the cached terms of the field, to be read with {@link #read}, or null if not cached
+     */
+    byte[] get(LeafReader reader, int doc, String fieldName, boolean payloadField, float payloadScale, int maxNumTokens) {
+        final OffHeapPages.Slot slot = cache.getIfPresent(new Key(reader.getCoreCacheKey(), doc, fieldName, payloadField, payloadScale, maxNumTokens));
+        // the slot may have been evicted since, and its chunk reused
+        if (slot == null || !slot.retain()) {
+            return null;
+        }
+        try {
+            return pages.read(slot);
+        } finally {
+            if (slot.release()) {
+                pages.free(slot);
+            }
+        }
+    }
+
+    /**
+     * Caches the terms extracted from the field of the segment's document
+     */
+    void put(LeafReader reader, int doc, String fieldName, boolean payloadField, float payloadScale, int maxNumTokens,
+             TermWeightMap terms) throws IOException {
+        final Object coreKey = reader.getCoreCacheKey();
+        Set<Key> keys = coreKeys.get(coreKey);
+        if (keys == null) {
+            final Set<Key> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+            keys = coreKeys.putIfAbsent(coreKey, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+                reader.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+                    @Override
+                    public void onClose(Object ownerCoreCacheKey) {
+                        evict(ownerCoreCacheKey);
+                    }
+                });
+            }
+        }
+        final byte[] entry = encode(terms);
+        final Key key = new Key(coreKey, doc, fieldName, payloadField, payloadScale, maxNumTokens);
+        OffHeapPages.Slot slot = null;
+        if (entry.length <= pages.getMaxEntryLength()) {
+            final List<OffHeapPages.Slot> victims = new ArrayList<OffHeapPages.Slot>();
+            slot = pages.allocate(entry.length, key, victims);
+            if (slot == null && !victims.isEmpty()) {
+                // free a page by evicting its entries, unless they have been replaced in the meantime
+                for (OffHeapPages.Slot victim : victims) {
+                    cache.asMap().remove(victim.owner, victim);
+                }
+                slot = pages.allocate(entry.length, key, new ArrayList<OffHeapPages.Slot>());
+            }
+        }
+        if (slot == null) {
+            rejected.incrementAndGet();
+            return;
+        }
+        pages.write(slot, entry);
+        keys.add(key);
+        cache.put(key, slot);
+    }
+
+    /**
+     * Adds the cached terms to the given term weights, in the order they were extracted
+     */
+    static void read(byte[] cached, TermWeightMap terms) {
+        final ByteArrayDataInput in = new ByteArrayDataInput(cached);
+        final byte weightEncoding = in.readByte();
+        final int numTerms = in.readVInt();
+        final float maxWeight = weightEncoding == QUANTIZED_WEIGHTS ? Float.intBitsToFloat(in.readInt()) : 0.0f;
+        final BytesRefBuilder term = new BytesRefBuilder();
+        for (int i = 0; i < numTerms; i++) {
+            final int prefix = in.readVInt();
+            final int suffix = in.readVInt();
+            term.grow(prefix + suffix);
+            in.readBytes(term.bytes(), prefix, suffix);
+            term.setLength(prefix + suffix);
+            final float weight;
+            if (weightEncoding == INTEGER_WEIGHTS) {
+                weight = in.readVInt();
+            } else if (weightEncoding == QUANTIZED_WEIGHTS) {
+                weight = PayloadCodec.decode(cached, in.getPosition(), 2, maxWeight);
+                in.skipBytes(2);
+            } else {
+                weight = Float.intBitsToFloat(in.readInt());
+            }
+            terms.add(term.get(), weight);
+        }
+    }
+
+    static byte[] encode(TermWeightMap terms) throws IOException {
+        final int numTerms = terms.size();
+        final BytesRef term = new BytesRef();
+        boolean integerWeights = true;
+        boolean negativeWeights = false;
+        float maxWeight = 0.0f;
+        // flag + vInt count + max weight, then at most 2 vInts + suffix + 5 byte weight per term
+        int maxLength = 10;
+        for (int id = 0; id < numTerms; id++) {
+            final float weight = terms.getWeight(id);
+            if (weight < 0 || weight != (int) weight) {
+                integerWeights = false;
+            }
+            if (!(weight >= 0)) {
+                negativeWeights = true;
+            }
+            maxWeight = Math.max(maxWeight, weight);
+            maxLength += 15 + terms.getTerm(id, term).length;
+        }
+        final byte weightEncoding = integerWeights ? INTEGER_WEIGHTS
+                : negativeWeights || maxWeight == Float.POSITIVE_INFINITY ? FLOAT_WEIGHTS : QUANTIZED_WEIGHTS;
+        final PayloadCodec codec = weightEncoding == QUANTIZED_WEIGHTS
+                ? new PayloadCodec(PayloadCodec.Encoding.SHORT, maxWeight)
+                : null;
+
+        final byte[] bytes = new byte[maxLength];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        out.writeByte(weightEncoding);
+        out.writeVInt(numTerms);
+        if (codec != null) {
+            out.writeInt(Float.floatToIntBits(maxWeight));
+        }
+        final BytesRef previous = new BytesRef();
+        final byte[] quantized = new byte[2];
+        for (int id = 0; id < numTerms; id++) {
+            terms.getTerm(id, term);
+            final int prefix = sharedPrefix(previous, term);
+            out.writeVInt(prefix);
+            out.writeVInt(term.length - prefix);
+            out.writeBytes(term.bytes, term.offset + prefix, term.length - prefix);
+            final float weight = terms.getWeight(id);
+            if (weightEncoding == INTEGER_WEIGHTS) {
+                out.writeVInt((int) weight);
+            } else if (codec != null) {
+                codec.encode(weight, quantized, 0);
+                out.writeBytes(quantized, 0, 2);
+            } else {
+                out.writeInt(Float.floatToIntBits(weight));
+            }
+            // the term points into the map's pool, so it is still valid on the next iteration
+            previous.bytes = term.bytes;
+            previous.offset = term.offset;
+            previous.length = term.length;
+        }
+
+        final byte[] entry = new byte[out.getPosition()];
+        System.arraycopy(bytes, 0, entry, 0, entry.length);
+        return entry;
+    }
+
+    private static int sharedPrefix(BytesRef a, BytesRef b) {
+        final int len = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < len && a.bytes[a.offset + i] == b.bytes[b.offset + i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private void evict(Object coreKey) {
+        final Set<Key> keys = coreKeys.remove(coreKey);
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the hit, miss and eviction counts and the off heap memory allocated and used, for the handler statistics
+     */
+    public NamedList<Object> getStatistics() {
+        final CacheStats stats = cache.stats();
+        NamedList<Object> lst = new NamedList<Object>();
+        lst.add("size", cache.size());
+        lst.add("lookups", stats.requestCount());
+        lst.add("hits", stats.hitCount());
+        lst.add("hitratio", (float) stats.hitRate());
+        lst.add("misses", stats.missCount());
+        lst.add("evictions", stats.evictionCount());
+        lst.add("rejected", rejected.get());
+        lst.add("offHeapBytes", pages.getAllocatedBytes());
+        lst.add("usedOffHeapBytes", pages.getUsedBytes());
+        return lst;
+    }
+
+    private static final class Key {
+        private final Object coreKey;
+        private final int doc;
+        private final String fieldName;
+        private final boolean payloadField;
+        // only the weights of a payload field depend on the scale
+        private final float payloadScale;
+        private final int maxNumTokens;
+        private final int hash;
+
+        private Key(Object coreKey, int doc, String fieldName, boolean payloadField, float payloadScale, int maxNumTokens) {
+            this.coreKey = coreKey;
+            this.doc = doc;
+            this.fieldName = fieldName;
+            this.payloadField = payloadField;
+            this.payloadScale = payloadField ? payloadScale : 0.0f;
+            this.maxNumTokens = maxNumTokens;
+            int h = System.identityHashCode(coreKey);
+            h = 31 * h + doc;
+            h = 31 * h + fieldName.hashCode();
+            h = 31 * h + (payloadField ? 1 : 0);
+            h = 31 * h + Float.floatToIntBits(this.payloadScale);
+            this.hash = 31 * h + maxNumTokens;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return coreKey == other.coreKey && doc == other.doc && payloadField == other.payloadField
+                    && payloadScale == other.payloadScale && maxNumTokens == other.maxNumTokens && fieldName.equals(other.fieldName);
+        }
+    }
+}
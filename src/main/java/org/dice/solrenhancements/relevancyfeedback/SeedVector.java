@@ -0,0 +1,67 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The term weights of every term scored when the rf terms were selected, not only the top maxflqt of each field,
+ * for rescoring documents by their cosine similarity to the seeds. Weighted as the rf terms are, except that a
+ * normalized field is normalized by the vector length of all its scored terms.
+ */
+final class SeedVector {
+
+    private final Map<String, TermWeightMap> termWeights = new HashMap<String, TermWeightMap>();
+    private final Map<String, Float> scales = new HashMap<String, Float>();
+    private final Map<String, Float> fieldBoosts = new HashMap<String, Float>();
+    private double normSquared = 0.0;
+
+    /**
+     * Adds the term weights of a field. Safe to call from the tasks selecting the terms of each field.
+     *
+     * @param fieldName the field
+     * @param weights the tf-idf weights of the field's terms, without the field boost
+     * @param fieldBoost the field boost
+     * @param normalize whether to normalize the weights by the field's vector length
+     */
+    synchronized void addField(String fieldName, TermWeightMap weights, float fieldBoost, boolean normalize) {
+        double sumSquared = 0.0;
+        for (int id = 0; id < weights.size(); id++) {
+            sumSquared += weights.getWeight(id) * weights.getWeight(id);
+        }
+        if (sumSquared <= 0.0) {
+            return;
+        }
+        float scale = normalize ? (float) (fieldBoost / Math.sqrt(sumSquared)) : fieldBoost;
+        termWeights.put(fieldName, weights);
+        scales.put(fieldName, scale);
+        fieldBoosts.put(fieldName, fieldBoost);
+        normSquared += sumSquared * scale * scale;
+    }
+
+    Set<String> getFieldNames() {
+        return termWeights.keySet();
+    }
+
+    float getFieldBoost(String fieldName) {
+        return fieldBoosts.get(fieldName);
+    }
+
+    /**
+     * @return the final weight of the term in the seed vector, or 0 if the term was not scored
+     */
+    float getWeight(String fieldName, BytesRef term) {
+        TermWeightMap weights = termWeights.get(fieldName);
+        int id = weights == null ? -1 : weights.find(term);
+        return id < 0 ? 0.0f : weights.getWeight(id) * scales.get(fieldName);
+    }
+
+    /**
+     * @return the squared length of the vector of all the final weights
+     */
+    double getNormSquared() {
+        return normSquared;
+    }
+}
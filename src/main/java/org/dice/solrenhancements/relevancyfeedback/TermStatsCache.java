@@ -0,0 +1,158 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded cache of per-segment term statistics, shared across RF requests.
+ *
+ * Entries are keyed on the segment core, field and term bytes, so a reopened searcher (e.g. after a soft commit)
+ * still hits for every segment it shares with the previous one, and only the new segments are looked up in the
+ * terms dictionary. The per-segment entries are summed into a TermContext at lookup time. Terms that are not in
+ * a segment are cached too, as that is the common case for a small new segment. Entries for a segment are
+ * dropped when its core is closed, e.g. once it has been merged away, through the keys tracked per core.
+ */
+public final class TermStatsCache {
+
+    /**
+     * Cached value for a term that does not occur in the segment
+     */
+    static final Entry MISSING = new Entry(null, 0, 0);
+
+    private final Cache<Key, Entry> cache;
+    // the cached keys of each segment core, to evict them when the core is closed
+    private final ConcurrentHashMap<Object, Set<Key>> coreKeys = new ConcurrentHashMap<Object, Set<Key>>();
+
+    public TermStatsCache(int maxSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .removalListener(new RemovalListener<Key, Entry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, Entry> notification) {
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            final Set<Key> keys = coreKeys.get(notification.getKey().coreKey);
+                            if (keys != null) {
+                                keys.remove(notification.getKey());
+                            }
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return the cached statistics, {@link #MISSING} if the term is known not to be in the segment, or null if not cached
+     */
+    Entry get(LeafReader reader, String fieldName, BytesRef term) {
+        return cache.getIfPresent(new Key(reader.getCoreCacheKey(), fieldName, term));
+    }
+
+    /**
+     * Caches the statistics of the term in the segment. The term bytes are copied, the term state is not.
+     *
+     * @param state the term state of the term, or null if the term is not in the segment
+     */
+    void put(LeafReader reader, String fieldName, BytesRef term, TermState state, int docFreq, long totalTermFreq) {
+        final Object coreKey = reader.getCoreCacheKey();
+        Set<Key> keys = coreKeys.get(coreKey);
+        if (keys == null) {
+            final Set<Key> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+            keys = coreKeys.putIfAbsent(coreKey, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+                reader.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+                    @Override
+                    public void onClose(Object ownerCoreCacheKey) {
+                        evict(ownerCoreCacheKey);
+                    }
+                });
+            }
+        }
+        final Entry entry = state == null ? MISSING : new Entry(state, docFreq, totalTermFreq);
+        final Key key = new Key(coreKey, fieldName, BytesRef.deepCopyOf(term));
+        keys.add(key);
+        cache.put(key, entry);
+    }
+
+    private void evict(Object coreKey) {
+        final Set<Key> keys = coreKeys.remove(coreKey);
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the hit, miss and eviction counts, for the handler statistics
+     */
+    public NamedList<Object> getStatistics() {
+        final CacheStats stats = cache.stats();
+        NamedList<Object> lst = new NamedList<Object>();
+        lst.add("size", cache.size());
+        lst.add("lookups", stats.requestCount());
+        lst.add("hits", stats.hitCount());
+        lst.add("hitratio", (float) stats.hitRate());
+        lst.add("misses", stats.missCount());
+        lst.add("evictions", stats.evictionCount());
+        return lst;
+    }
+
+    static final class Entry {
+        final TermState state;
+        final int docFreq;
+        final long totalTermFreq;
+
+        private Entry(TermState state, int docFreq, long totalTermFreq) {
+            this.state = state;
+            this.docFreq = docFreq;
+            this.totalTermFreq = totalTermFreq;
+        }
+    }
+
+    private static final class Key {
+        private final Object coreKey;
+        private final String fieldName;
+        private final BytesRef term;
+        private final int hash;
+
+        private Key(Object coreKey, String fieldName, BytesRef term) {
+            this.coreKey = coreKey;
+            this.fieldName = fieldName;
+            this.term = term;
+            this.hash = 31 * (31 * System.identityHashCode(coreKey) + fieldName.hashCode()) + term.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return coreKey == other.coreKey && fieldName.equals(other.fieldName) && term.equals(other.term);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IntroSorter;
+
+import java.util.Arrays;
+
+/**
+ * Sparse term weight accumulator keyed on the raw (UTF-8) term bytes.
+ *
+ * Terms are interned once into a {@link BytesRefHash} and their weights are kept in a parallel float array
+ * indexed by the term id, so accumulating a weight never decodes the term into a String or boxes the value.
+ */
+public final class TermWeightMap {
+
+    private final BytesRefHash terms = new BytesRefHash();
+    private float[] weights = new float[BytesRefHash.DEFAULT_CAPACITY];
+
+    /**
+     * Adds weight to the term, inserting it if not already present. The bytes are copied.
+     *
+     * @param term the term bytes
+     * @param weight the weight to add
+     * @return the id of the term
+     */
+    public int add(BytesRef term, float weight) {
+        int id = terms.add(term);
+        if (id < 0) {
+            id = -id - 1;
+        } else if (id >= weights.length) {
+            weights = ArrayUtil.grow(weights, id + 1);
+        }
+        weights[id] += weight;
+        return id;
+    }
+
+    /**
+     * Adds the weights of every term in other, in the order of its term ids
+     *
+     * @param other the term weights to add
+     */
+    public void addAll(TermWeightMap other) {
+        final BytesRef spare = new BytesRef();
+        for (int id = 0; id < other.size(); id++) {
+            add(other.getTerm(id, spare), other.getWeight(id));
+        }
+    }
+
+    /**
+     * @return the number of distinct terms
+     */
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * Populates and returns spare with the bytes of the given term id. The returned reference points into
+     * the internal pool and is only valid until the map is cleared.
+     */
+    public BytesRef getTerm(int id, BytesRef spare) {
+        return terms.get(id, spare);
+    }
+
+    /**
+     * @return the id of the term, or -1 if not present
+     */
+    public int find(BytesRef term) {
+        return terms.find(term);
+    }
+
+    public float getWeight(int id) {
+        return weights[id];
+    }
+
+    /**
+     * Sorts a slice of term ids in place into term (unsigned byte) order, the order of a TermsEnum
+     *
+     * @param ids the term ids to sort
+     * @param from start index, inclusive
+     * @param to end index, exclusive
+     */
+    public void sortByTerm(final int[] ids, int from, int to) {
+        new IntroSorter() {
+            private final BytesRef pivot = new BytesRef();
+            private final BytesRef left = new BytesRef();
+            private final BytesRef right = new BytesRef();
+
+            @Override
+            protected void swap(int i, int j) {
+                int tmp = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tmp;
+            }
+
+            @Override
+            protected int compare(int i, int j) {
+                return terms.get(ids[i], left).compareTo(terms.get(ids[j], right));
+            }
+
+            @Override
+            protected void setPivot(int i) {
+                terms.get(ids[i], pivot);
+            }
+
+            @Override
+            protected int comparePivot(int j) {
+                return pivot.compareTo(terms.get(ids[j], right));
+            }
+        }.sort(from, to);
+    }
+
+    public void clear() {
+        Arrays.fill(weights, 0, terms.size(), 0.0f);
+        terms.clear();
+        // clear() drops the hash's start array, which add() needs
+        terms.reinit();
+    }
+}
@@ -0,0 +1,497 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IntroSorter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Scores a large weighted set of terms, as generated for an RF query, term at a time.
+ *
+ * Matches and scores the same documents as a BooleanQuery of SHOULD BoostQuery(TermQuery) clauses with the same
+ * minimum should match, including the coord factor, but without a clause limit. Rather than merging the postings
+ * of every term doc at a time through a heap, each segment's postings are read one term after another into a
+ * score accumulator: a dense array per segment when the terms match a large share of its documents, otherwise
+ * (doc, score) pairs that are sorted and merged.
+ */
+public class WeightedTermsQuery extends Query {
+
+    // use the dense accumulator once there is more than one posting per this many docs in the segment, where its
+    // arrays take at most this many times the memory of the sparse ones
+    private static final int DENSE_POSTINGS_RATIO = 4;
+
+    private final Term[] terms;
+    private final float[] weights;
+    private final TermContext[] termContexts;
+    private final int minShouldMatch;
+
+    /**
+     * @param terms the terms
+     * @param weights the weight (boost) of each term
+     * @param termContexts the term states of each term if already resolved, or null entries to look them up
+     * @param minShouldMatch the minimum number of terms a document has to match
+     */
+    public WeightedTermsQuery(Term[] terms, float[] weights, TermContext[] termContexts, int minShouldMatch) {
+        if (terms.length != weights.length || terms.length != termContexts.length) {
+            throw new IllegalArgumentException("There must be a weight and a term context for every term");
+        }
+        this.terms = terms;
+        this.weights = weights;
+        this.termContexts = termContexts;
+        this.minShouldMatch = minShouldMatch;
+    }
+
+    public int getMinimumNumberShouldMatch() {
+        return minShouldMatch;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new WeightedTermsWeight(searcher, needsScores);
+    }
+
+    Term[] getTerms() {
+        return terms;
+    }
+
+    float[] getWeights() {
+        return weights;
+    }
+
+    final class WeightedTermsWeight extends Weight {
+        final Similarity similarity;
+        private final TermContext[] states;
+        final Similarity.SimWeight[] stats;
+        // coord factor by the number of matching terms
+        final float[] coords;
+        // the dense accumulator of the last segment, reused for the next one, as its scorer copies the matches out
+        private DenseAccumulator spareDense = null;
+
+        WeightedTermsWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+            super(WeightedTermsQuery.this);
+            this.similarity = searcher.getSimilarity(needsScores);
+            final IndexReaderContext topContext = searcher.getTopReaderContext();
+            this.states = new TermContext[terms.length];
+            this.stats = new Similarity.SimWeight[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                TermContext termContext = termContexts[i];
+                // the term states are only valid for the reader they were built for
+                if (termContext == null || termContext.topReaderContext != topContext) {
+                    termContext = TermContext.build(topContext, terms[i]);
+                }
+                states[i] = termContext;
+                stats[i] = similarity.computeWeight(
+                        searcher.collectionStatistics(terms[i].field()),
+                        searcher.termStatistics(terms[i], termContext));
+            }
+            this.coords = new float[terms.length + 1];
+            for (int overlap = 0; overlap <= terms.length; overlap++) {
+                coords[overlap] = needsScores ? similarity.coord(overlap, terms.length) : 1.0f;
+            }
+        }
+
+        @Override
+        public void extractTerms(Set<Term> set) {
+            set.addAll(Arrays.asList(terms));
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            // as for a BooleanQuery of BoostQuery clauses
+            float sum = 0.0f;
+            for (int i = 0; i < terms.length; i++) {
+                sum += stats[i].getValueForNormalization() * weights[i] * weights[i];
+            }
+            return sum;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+            for (int i = 0; i < terms.length; i++) {
+                stats[i].normalize(norm, boost * weights[i]);
+            }
+        }
+
+        /**
+         * @return the postings of the term in the segment, or null if it is not in the segment
+         */
+        TermsEnum termsEnum(LeafReaderContext context, int i) throws IOException {
+            final TermState state = states[i].get(context.ord);
+            if (state == null) {
+                return null;
+            }
+            final TermsEnum termsEnum = context.reader().terms(terms[i].field()).iterator();
+            termsEnum.seekExact(terms[i].bytes(), state);
+            return termsEnum;
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            final LeafReader reader = context.reader();
+            final Bits liveDocs = reader.getLiveDocs();
+
+            final TermsEnum[] termsEnums = new TermsEnum[terms.length];
+            long totalPostings = 0;
+            for (int i = 0; i < terms.length; i++) {
+                termsEnums[i] = termsEnum(context, i);
+                if (termsEnums[i] != null) {
+                    totalPostings += termsEnums[i].docFreq();
+                }
+            }
+            if (totalPostings == 0) {
+                return null;
+            }
+
+            final DenseAccumulator dense = totalPostings * DENSE_POSTINGS_RATIO > reader.maxDoc()
+                    ? takeDenseAccumulator(reader.maxDoc())
+                    : null;
+            final ScoreAccumulator accumulator = dense != null ? dense : new SparseAccumulator((int) totalPostings);
+            for (int i = 0; i < terms.length; i++) {
+                if (termsEnums[i] == null) {
+                    continue;
+                }
+                final PostingsEnum postings = termsEnums[i].postings(null, PostingsEnum.FREQS);
+                final Similarity.SimScorer simScorer = similarity.simScorer(stats[i], context);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                    accumulator.add(doc, simScorer.score(doc, postings.freq()));
+                }
+            }
+            final Scorer scorer = accumulator.scorer(this, Math.max(1, minShouldMatch), coords);
+            if (dense != null) {
+                releaseDenseAccumulator(dense);
+            }
+            return scorer;
+        }
+
+        /**
+         * @return the spare dense accumulator if it is large enough for the segment, otherwise a new one
+         */
+        private synchronized DenseAccumulator takeDenseAccumulator(int maxDoc) {
+            final DenseAccumulator dense = spareDense;
+            spareDense = null;
+            if (dense == null || !dense.reset(maxDoc)) {
+                return new DenseAccumulator(maxDoc);
+            }
+            return dense;
+        }
+
+        private synchronized void releaseDenseAccumulator(DenseAccumulator dense) {
+            if (spareDense == null || spareDense.capacity() < dense.capacity()) {
+                spareDense = dense;
+            }
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            final Scorer scorer = scorer(context);
+            if (scorer == null || scorer.iterator().advance(doc) != doc) {
+                return Explanation.noMatch("no matching terms, or fewer than " + minShouldMatch);
+            }
+            List<Explanation> details = new ArrayList<Explanation>();
+            float sum = 0.0f;
+            int overlap = 0;
+            for (int i = 0; i < terms.length; i++) {
+                final TermsEnum termsEnum = termsEnum(context, i);
+                if (termsEnum == null) {
+                    continue;
+                }
+                final PostingsEnum postings = termsEnum.postings(null, PostingsEnum.FREQS);
+                if (postings.advance(doc) == doc) {
+                    final int freq = postings.freq();
+                    final Explanation termExpl = similarity.simScorer(stats[i], context).explain(doc,
+                            Explanation.match(freq, "termFreq=" + freq));
+                    details.add(Explanation.match(termExpl.getValue(), "weight(" + terms[i] + "^" + weights[i] + "), result of:", termExpl));
+                    sum += termExpl.getValue();
+                    overlap++;
+                }
+            }
+            final Explanation sumExpl = Explanation.match(sum, "sum of:", details);
+            if (coords[overlap] == 1.0f) {
+                return sumExpl;
+            }
+            return Explanation.match(sum * coords[overlap], "product of:", sumExpl,
+                    Explanation.match(coords[overlap], "coord(" + overlap + "/" + terms.length + ")"));
+        }
+    }
+
+    /**
+     * Accumulates the scores of a segment's documents term at a time
+     */
+    private static abstract class ScoreAccumulator {
+        abstract void add(int doc, float score);
+
+        /**
+         * @return a scorer over the documents matching at least minShouldMatch terms, or null if there are none
+         */
+        abstract Scorer scorer(Weight weight, int minShouldMatch, float[] coords);
+    }
+
+    /**
+     * Accumulates into arrays indexed by docid, for when the terms match many of the segment's documents. The arrays
+     * are zeroed again as the scorer is built, so the accumulator can be reused for a segment up to its capacity.
+     */
+    private static final class DenseAccumulator extends ScoreAccumulator {
+        private final float[] scores;
+        private final int[] counts;
+        private int maxDoc;
+
+        DenseAccumulator(int maxDoc) {
+            this.scores = new float[maxDoc];
+            this.counts = new int[maxDoc];
+            this.maxDoc = maxDoc;
+        }
+
+        int capacity() {
+            return counts.length;
+        }
+
+        /**
+         * @return whether the accumulator can be used for a segment of maxDoc docs
+         */
+        boolean reset(int maxDoc) {
+            if (maxDoc > counts.length) {
+                return false;
+            }
+            this.maxDoc = maxDoc;
+            return true;
+        }
+
+        @Override
+        void add(int doc, float score) {
+            scores[doc] += score;
+            counts[doc]++;
+        }
+
+        @Override
+        Scorer scorer(Weight weight, int minShouldMatch, float[] coords) {
+            int size = 0;
+            for (int doc = 0; doc < maxDoc; doc++) {
+                if (counts[doc] >= minShouldMatch) {
+                    size++;
+                }
+            }
+            if (size == 0) {
+                Arrays.fill(scores, 0, maxDoc, 0.0f);
+                Arrays.fill(counts, 0, maxDoc, 0);
+                return null;
+            }
+            final int[] docs = new int[size];
+            final float[] docScores = new float[size];
+            final int[] freqs = new int[size];
+            int n = 0;
+            for (int doc = 0; doc < maxDoc; doc++) {
+                if (counts[doc] >= minShouldMatch) {
+                    docs[n] = doc;
+                    docScores[n] = scores[doc] * coords[counts[doc]];
+                    freqs[n] = counts[doc];
+                    n++;
+                }
+                scores[doc] = 0.0f;
+                counts[doc] = 0;
+            }
+            return new AccumulatedScorer(weight, docs, docScores, freqs, n);
+        }
+    }
+
+    /**
+     * Accumulates (doc, score) pairs, sorted and merged by docid at the end, for when the terms are selective
+     */
+    private static final class SparseAccumulator extends ScoreAccumulator {
+        private final int[] docs;
+        private final float[] scores;
+        private int size = 0;
+
+        SparseAccumulator(int maxPostings) {
+            this.docs = new int[maxPostings];
+            this.scores = new float[maxPostings];
+        }
+
+        @Override
+        void add(int doc, float score) {
+            docs[size] = doc;
+            scores[size] = score;
+            size++;
+        }
+
+        @Override
+        Scorer scorer(Weight weight, int minShouldMatch, float[] coords) {
+            new IntroSorter() {
+                private int pivot;
+
+                @Override
+                protected void swap(int i, int j) {
+                    final int doc = docs[i];
+                    docs[i] = docs[j];
+                    docs[j] = doc;
+                    final float score = scores[i];
+                    scores[i] = scores[j];
+                    scores[j] = score;
+                }
+
+                @Override
+                protected int compare(int i, int j) {
+                    return Integer.compare(docs[i], docs[j]);
+                }
+
+                @Override
+                protected void setPivot(int i) {
+                    pivot = docs[i];
+                }
+
+                @Override
+                protected int comparePivot(int j) {
+                    return Integer.compare(pivot, docs[j]);
+                }
+            }.sort(0, size);
+
+            // merge the postings of each doc in place, the merged entries are never ahead of the ones being read
+            final int[] freqs = new int[size];
+            int n = 0;
+            int i = 0;
+            while (i < size) {
+                final int doc = docs[i];
+                float score = 0.0f;
+                int count = 0;
+                while (i < size && docs[i] == doc) {
+                    score += scores[i];
+                    count++;
+                    i++;
+                }
+                if (count >= minShouldMatch) {
+                    docs[n] = doc;
+                    scores[n] = score * coords[count];
+                    freqs[n] = count;
+                    n++;
+                }
+            }
+            return n == 0 ? null : new AccumulatedScorer(weight, docs, scores, freqs, n);
+        }
+    }
+
+    /**
+     * Iterates over the accumulated documents of a segment, in docid order
+     */
+    private static final class AccumulatedScorer extends Scorer {
+        private final int[] docs;
+        private final float[] scores;
+        private final int[] freqs;
+        private final int size;
+        private int index = -1;
+
+        private final DocIdSetIterator iterator = new DocIdSetIterator() {
+            @Override
+            public int docID() {
+                return AccumulatedScorer.this.docID();
+            }
+
+            @Override
+            public int nextDoc() {
+                index++;
+                return docID();
+            }
+
+            @Override
+            public int advance(int target) {
+                if (index + 1 >= size) {
+                    index = size;
+                    return NO_MORE_DOCS;
+                }
+                final int found = Arrays.binarySearch(docs, index + 1, size, target);
+                index = found >= 0 ? found : -found - 1;
+                return docID();
+            }
+
+            @Override
+            public long cost() {
+                return size;
+            }
+        };
+
+        AccumulatedScorer(Weight weight, int[] docs, float[] scores, int[] freqs, int size) {
+            super(weight);
+            this.docs = docs;
+            this.scores = scores;
+            this.freqs = freqs;
+            this.size = size;
+        }
+
+        @Override
+        public int docID() {
+            if (index < 0) {
+                return -1;
+            }
+            return index < size ? docs[index] : DocIdSetIterator.NO_MORE_DOCS;
+        }
+
+        @Override
+        public float score() {
+            return scores[index];
+        }
+
+        @Override
+        public int freq() {
+            return freqs[index];
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        // the same as the equivalent BooleanQuery, so the query can be re-parsed e.g. as a boost query
+        StringBuilder buffer = new StringBuilder();
+        final boolean needParens = minShouldMatch > 0;
+        if (needParens) {
+            buffer.append("(");
+        }
+        for (int i = 0; i < terms.length; i++) {
+            if (i > 0) {
+                buffer.append(" ");
+            }
+            buffer.append("(");
+            if (!terms[i].field().equals(field)) {
+                buffer.append(terms[i].field()).append(":");
+            }
+            buffer.append(terms[i].text()).append(")^").append(weights[i]);
+        }
+        if (needParens) {
+            buffer.append(")~").append(minShouldMatch);
+        }
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        WeightedTermsQuery other = (WeightedTermsQuery) obj;
+        return minShouldMatch == other.minShouldMatch
+                && Arrays.equals(terms, other.terms)
+                && Arrays.equals(weights, other.weights);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = getClass().hashCode();
+        h = 31 * h + Arrays.hashCode(terms);
+        h = 31 * h + Arrays.hashCode(weights);
+        return 31 * h + minShouldMatch;
+    }
+}
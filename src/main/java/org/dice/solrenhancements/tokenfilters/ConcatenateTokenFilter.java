@@ -4,24 +4,24 @@ package org.dice.solrenhancements.tokenfilters;
  * Created by simon.hughes on 4/7/16.
  */
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.shingle.ShingleFilter;
 import org.apache.lucene.analysis.tokenattributes.*;
-import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.ArrayUtil;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Based on http://sujitpal.blogspot.com/2011/07/lucene-token-concatenating-tokenfilter_30.html
  *
  * Concatenate all tokens, separated by a provided character,
- * defaulting to a single space. It always produces exactly one token, and it's designed to be the
- * last token filter in an analysis chain.
+ * defaulting to a single space. It produces one token per combination of the tokens at each position (one token
+ * if there are no synonyms), and it's designed to be the last token filter in an analysis chain.
+ *
+ * The combinations are enumerated one at a time, the last position varying fastest, and written straight into the
+ * term buffer, so synonyms at many positions don't build the cross product up front. At most maxPhrases are emitted.
  */
 public class ConcatenateTokenFilter extends TokenFilter {
 
@@ -35,11 +35,25 @@ public class ConcatenateTokenFilter extends TokenFilter {
    */
 
     private final String separator;
-    private LinkedList<List<String>> words;
-    private LinkedList<String> phrases;
-
-    private boolean concat = false;
-    private AttributeSource.State current;
+    private final int maxPhrases;
+
+    // the chars of every token, back to back, and where each token is
+    private char[] chars = new char[128];
+    private int charsLength = 0;
+    private int[] tokenStarts = new int[16];
+    private int[] tokenLengths = new int[16];
+    private int numTokens = 0;
+    // the first token at each position, and the number of tokens there (a word and its synonyms)
+    private int[] positionStarts = new int[16];
+    private int[] positionSizes = new int[16];
+    private int numPositions = 0;
+    private boolean hasSynonyms = false;
+
+    // the token chosen at each position for the next phrase
+    private int[] choices = new int[16];
+    private int numEmitted = 0;
+    private boolean consumed = false;
+    private boolean exhausted = false;
 
     private final CharTermAttribute termAttr = addAttribute(CharTermAttribute.class);
     private final OffsetAttribute offsetAttr = addAttribute(OffsetAttribute.class);
@@ -47,81 +61,129 @@ public class ConcatenateTokenFilter extends TokenFilter {
     private final PositionLengthAttribute posLenAttr = addAttribute(PositionLengthAttribute.class);
     private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
 
-    private StringBuilder buf = new StringBuilder(128);
-
     public ConcatenateTokenFilter(TokenStream input, String separator) {
+        this(input, separator, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxPhrases the maximum number of phrases emitted when there are synonyms
+     */
+    public ConcatenateTokenFilter(TokenStream input, String separator, int maxPhrases) {
         super(input);
         this.separator = separator;
-        this.words = new LinkedList<List<String>>();
-        this.phrases = new LinkedList<String>();
+        this.maxPhrases = maxPhrases;
     }
 
     @Override
     public void reset() throws IOException {
         super.reset();
-        this.words = new LinkedList<List<String>>();
-        this.phrases = new LinkedList<String>();
+        this.charsLength = 0;
+        this.numTokens = 0;
+        this.numPositions = 0;
+        this.hasSynonyms = false;
+        this.consumed = false;
     }
 
     @Override
     public final boolean incrementToken() throws IOException {
-        //TODO make sure this works with synonyms and stop words
-
-        int i = 0;
-        while (input.incrementToken()) {
-            String term = new String(termAttr.buffer(), 0, termAttr.length());
-            List<String> word = posIncrAttr.getPositionIncrement() > 0 ? new ArrayList<String>() : words.removeLast();
-            word.add(term);
-            words.add(word);
-            i++;
+        //TODO make sure this works with stop words
+
+        if (!consumed) {
+            consumeInput();
+            consumed = true;
+            Arrays.fill(choices, 0, numPositions, 0);
+            numEmitted = 0;
+            exhausted = numPositions == 0;
         }
-        // now write out as a single token
-        if (! concat) {
-            makePhrases(words, phrases, 0);
-            concat = true;
+        if (exhausted || numEmitted >= maxPhrases) {
+            return false;
         }
-        while (phrases.size() > 0) {
 
-            String phrase = phrases.removeFirst();
-            restoreState(current);
-            clearAttributes();
+        clearAttributes();
+        writePhrase();
+        //posIncrAttr.setPositionIncrement(0);
+        typeAtt.setType(ShingleFilter.DEFAULT_TOKEN_TYPE);//"shingle"
+        numEmitted++;
 
-            termAttr.setEmpty();
-            termAttr.append(phrase);
-            termAttr.setLength(phrase.length());
+        // without synonyms there is just the one phrase
+        exhausted = !hasSynonyms || !nextChoices();
+        return true;
+    }
 
-            //posIncrAttr.setPositionIncrement(0);
-            typeAtt.setType(ShingleFilter.DEFAULT_TOKEN_TYPE);//"shingle"
+    /**
+     * Reads every token of the input, grouping the tokens at the same position
+     */
+    private void consumeInput() throws IOException {
+        while (input.incrementToken()) {
+            if (posIncrAttr.getPositionIncrement() > 0 || numPositions == 0) {
+                if (numPositions == positionStarts.length) {
+                    final int size = ArrayUtil.oversize(numPositions + 1, 4);
+                    positionStarts = Arrays.copyOf(positionStarts, size);
+                    positionSizes = Arrays.copyOf(positionSizes, size);
+                    choices = Arrays.copyOf(choices, size);
+                }
+                positionStarts[numPositions] = numTokens;
+                positionSizes[numPositions] = 0;
+                numPositions++;
+            }
+            if (++positionSizes[numPositions - 1] > 1) {
+                hasSynonyms = true;
+            }
 
-            current = captureState();
-            return true;
+            if (numTokens == tokenStarts.length) {
+                final int size = ArrayUtil.oversize(numTokens + 1, 4);
+                tokenStarts = Arrays.copyOf(tokenStarts, size);
+                tokenLengths = Arrays.copyOf(tokenLengths, size);
+            }
+            final int length = termAttr.length();
+            chars = ArrayUtil.grow(chars, charsLength + length);
+            System.arraycopy(termAttr.buffer(), 0, chars, charsLength, length);
+            tokenStarts[numTokens] = charsLength;
+            tokenLengths[numTokens] = length;
+            charsLength += length;
+            numTokens++;
         }
-
-        concat = false;
-        return false;
     }
 
-    private void makePhrases(List<List<String>> words, List<String> phrases, int currPos) {
-        if (currPos == words.size()) {
-            return;
+    /**
+     * Writes the chosen token at each position into the term buffer, separated by the separator
+     */
+    private void writePhrase() {
+        int length = separator.length() * (numPositions - 1);
+        for (int p = 0; p < numPositions; p++) {
+            length += tokenLengths[positionStarts[p] + choices[p]];
         }
-        if (phrases.size() == 0) {
-            phrases.addAll(words.get(currPos));
-        } else {
-            List<String> newPhrases = new ArrayList<String>();
-            for (String phrase : phrases) {
-                for (String word : words.get(currPos)) {
-                    newPhrases.add(StringUtils.join(new String[] {phrase, word}, " "));
-                }
+        final char[] buffer = termAttr.resizeBuffer(length);
+        int offset = 0;
+        for (int p = 0; p < numPositions; p++) {
+            if (p > 0) {
+                separator.getChars(0, separator.length(), buffer, offset);
+                offset += separator.length();
             }
-            phrases.clear();
-            phrases.addAll(newPhrases);
+            final int token = positionStarts[p] + choices[p];
+            System.arraycopy(chars, tokenStarts[token], buffer, offset, tokenLengths[token]);
+            offset += tokenLengths[token];
         }
-        makePhrases(words, phrases, currPos + 1);
+        termAttr.setLength(length);
+    }
+
+    /**
+     * Moves on to the next combination, the last position varying fastest
+     *
+     * @return false once every combination has been emitted
+     */
+    private boolean nextChoices() {
+        for (int p = numPositions - 1; p >= 0; p--) {
+            if (++choices[p] < positionSizes[p]) {
+                return true;
+            }
+            choices[p] = 0;
+        }
+        return false;
     }
 
     @Override
     public void end() throws IOException {
         //we already called input.end() in incrementToken
     }
-}
\ No newline at end of file
+}
@@ -12,17 +12,26 @@ public class ConcatenateTokenFilterFactory extends TokenFilterFactory {
 
     private String separator = " ";
     private final String SEPARATOR_KEY = "separator";
+    // the maximum number of phrases emitted for the combinations of synonyms
+    private int maxPhrases = Integer.MAX_VALUE;
+    private final String MAX_PHRASES_KEY = "maxPhrases";
 
     public ConcatenateTokenFilterFactory(Map<String, String> args) {
         super(args);
         if (args.containsKey(SEPARATOR_KEY)){
             this.separator = args.get(SEPARATOR_KEY);
         }
+        if (args.containsKey(MAX_PHRASES_KEY)){
+            this.maxPhrases = Integer.parseInt(args.get(MAX_PHRASES_KEY));
+            if (this.maxPhrases < 1) {
+                throw new IllegalArgumentException(MAX_PHRASES_KEY + " must be at least 1");
+            }
+        }
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        return new ConcatenateTokenFilter(tokenStream, this.separator);
+        return new ConcatenateTokenFilter(tokenStream, this.separator, this.maxPhrases);
     }
 
 }
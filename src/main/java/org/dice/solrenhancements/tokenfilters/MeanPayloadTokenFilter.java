@@ -5,29 +5,76 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.payloads.PayloadHelper;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
-import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by simon.hughes on 7/30/15.
+ *
+ * Replaces the tokens of the stream with one token per distinct term, whose payload is the mean of the term's float
+ * payloads, normalized by the length of the vector of means. Tokens without a payload are dropped.
+ *
+ * The terms are aggregated in primitive arrays keyed on the term chars, and the buffers are reused from one stream
+ * to the next. The tokens are emitted in the order a java.util.HashMap keyed on the term strings iterates them,
+ * which is the order this filter has always produced them in: by hash bucket, then by first occurrence. That only
+ * holds while no bucket of the map grows past TREEIFY_THRESHOLD terms, at which point HashMap resizes or turns the
+ * bucket into a tree with its own order, so for such (rare) streams the order is taken from HashMaps of the terms.
+ *
+ * The payloads are written as floats by default, or quantized by a {@link PayloadCodec}.
  */
 public class MeanPayloadTokenFilter extends TokenFilter {
+    // the initial capacity of a java.util.HashMap
+    private static final int MIN_HASH_MAP_CAPACITY = 16;
+    // the number of entries in a java.util.HashMap bucket past which it is turned into a tree
+    private static final int TREEIFY_THRESHOLD = 8;
+
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
-    private List<Tuple<String, Float>> averagePayloadQueue = new ArrayList<Tuple<String, Float>>();
-    private AttributeSource.State current;
+
+    // the chars of the distinct terms, back to back, by term id (the order of first occurrence)
+    private char[] termChars = new char[256];
+    private int termCharsLength = 0;
+    private int[] termStarts = new int[16];
+    private int[] termLengths = new int[16];
+    private int[] termHashes = new int[16];
+    private float[] totalPayloads = new float[16];
+    private int[] tokenCounts = new int[16];
+    private int numTerms = 0;
+    // open addressing table of term id + 1, 0 for an empty slot
+    private int[] table = new int[32];
+
+    // the term ids in the order they are emitted, with their normalized payloads
+    private int[] emitOrder = new int[16];
+    private float[] normedPayloads = new float[16];
+    // the term ids in the order their squared means are summed, the emit order unless HashMap buckets are treeified
+    private int[] sumOrder = emitOrder;
+    private int[] bucketCounts = new int[MIN_HASH_MAP_CAPACITY + 1];
+    private int cursor = 0;
     private boolean processedPayloads = false;
 
+    private final PayloadCodec codec;
+    private final BytesRef payload = new BytesRef(new byte[4]);
+
     /**
      * Construct a token stream filtering the given input.
      *
      * @param input
      */
     protected MeanPayloadTokenFilter(TokenStream input) {
+        this(input, PayloadCodec.FLOAT);
+    }
+
+    /**
+     * @param codec encodes the normalized payloads
+     */
+    protected MeanPayloadTokenFilter(TokenStream input, PayloadCodec codec) {
         super(input);
+        this.codec = codec;
     }
 
 
@@ -35,83 +82,235 @@ public class MeanPayloadTokenFilter extends TokenFilter {
     public final boolean incrementToken() throws IOException {
 
         if(!processedPayloads) {
-            final Map<String, Float>   totalPayload = new HashMap<String, Float>();
-            final Map<String, Integer> tokenCount = new HashMap<String, Integer>();
-
             while (input.incrementToken()) {
-                CharTermAttribute termAtt = this.getAttribute(CharTermAttribute.class);
-
-                PayloadAttribute payloadAtt = this.getAttribute(PayloadAttribute.class);
-
-                final BytesRef payload = payloadAtt.getPayload();
-                if(payload == null)
+                final BytesRef tokenPayload = payloadAtt.getPayload();
+                if(tokenPayload == null)
                     continue;
 
-                float payloadValue = PayloadHelper.decodeFloat(payload.bytes, payload.offset);
-                final String term = termAtt.toString();
-                if (totalPayload.containsKey(term)) {
-                    totalPayload.put(term, totalPayload.get(term) + payloadValue);
-                    tokenCount.put(term, tokenCount.get(term) + 1);
+                float payloadValue = PayloadHelper.decodeFloat(tokenPayload.bytes, tokenPayload.offset);
+                final int hash = hash(termAtt.buffer(), termAtt.length());
+                int id = find(termAtt.buffer(), termAtt.length(), hash);
+                if (id >= 0) {
+                    totalPayloads[id] += payloadValue;
+                    tokenCounts[id]++;
                 } else {
-                    totalPayload.put(term, payloadValue);
-                    tokenCount.put(term, 1);
+                    id = add(termAtt.buffer(), termAtt.length(), hash);
+                    totalPayloads[id] = payloadValue;
+                    tokenCounts[id] = 1;
                 }
             }
+            if (hashMapTreeifies()) {
+                sortByHashMaps();
+            } else {
+                sortInHashMapOrder();
+            }
 
             // compute the average vector and vector length
-            final Map<String, Float>   averagePayload = new HashMap<String, Float>();
             float vectorLengthSq = 0.0f;
-            for(String term: totalPayload.keySet()){
-                float mean = totalPayload.get(term) / tokenCount.get(term);
+            for(int i = 0; i < numTerms; i++){
+                final int id = sumOrder[i];
+                float mean = totalPayloads[id] / tokenCounts[id];
                 vectorLengthSq += mean * mean;
-                averagePayload.put(term, mean);
             }
 
             // normalize by the vector length
             double vectorLength = Math.sqrt(vectorLengthSq);
-            for(String term : averagePayload.keySet()){
-                float normedValue = (float)(averagePayload.get(term) / vectorLength);
-                this.averagePayloadQueue.add(new Tuple<String, Float>(term, normedValue));
+            for(int i = 0; i < numTerms; i++){
+                final int id = emitOrder[i];
+                float mean = totalPayloads[id] / tokenCounts[id];
+                normedPayloads[i] = (float)(mean / vectorLength);
             }
             this.processedPayloads = true;
         }
 
-        if(false == this.averagePayloadQueue.isEmpty()){
-            restoreState(current);
+        if(cursor < numTerms){
             clearAttributes();
-
-            Tuple<String, Float> tuple = this.averagePayloadQueue.remove(0);
-            setAttributes(tuple.x, tuple.y);
-            current = captureState();
+            final int id = emitOrder[cursor];
+            termAtt.copyBuffer(termChars, termStarts[id], termLengths[id]);
+            payload.length = codec.encode(normedPayloads[cursor], payload.bytes, 0);
+            payloadAtt.setPayload(payload);
+            cursor++;
             return true;
         }
         return false;
     }
 
-    protected void setAttributes(String token, float payload) {
-        CharTermAttribute termAtt = this.getAttribute(CharTermAttribute.class);
-        termAtt.setEmpty();
-        termAtt.append(token);
-        termAtt.setLength(token.length());
+    /**
+     * Orders the term ids by the bucket a java.util.HashMap of the same size puts them in, and by id within a bucket
+     */
+    private void sortInHashMapOrder() {
+        int capacity = MIN_HASH_MAP_CAPACITY;
+        while (numTerms > capacity * 3 / 4) {
+            capacity <<= 1;
+        }
+        if (bucketCounts.length < capacity + 1) {
+            bucketCounts = new int[capacity + 1];
+        } else {
+            Arrays.fill(bucketCounts, 0, capacity + 1, 0);
+        }
+        // a stable counting sort on the bucket
+        for (int id = 0; id < numTerms; id++) {
+            bucketCounts[bucket(termHashes[id], capacity) + 1]++;
+        }
+        for (int b = 0; b < capacity; b++) {
+            bucketCounts[b + 1] += bucketCounts[b];
+        }
+        growEmitOrder();
+        for (int id = 0; id < numTerms; id++) {
+            emitOrder[bucketCounts[bucket(termHashes[id], capacity)]++] = id;
+        }
+        sumOrder = emitOrder;
+    }
 
-        PayloadAttribute payloadAtt = this.getAttribute(PayloadAttribute.class);
-        byte[] bytes = PayloadHelper.encodeFloat(payload);
-        payloadAtt.setPayload(new BytesRef(bytes));
+    /**
+     * @return whether a java.util.HashMap the terms are put in, in the order of first occurrence, would grow a bucket
+     * past TREEIFY_THRESHOLD terms at some point
+     */
+    private boolean hashMapTreeifies() {
+        int capacity = MIN_HASH_MAP_CAPACITY;
+        if (bucketCounts.length < capacity + 1) {
+            bucketCounts = new int[capacity + 1];
+        }
+        Arrays.fill(bucketCounts, 0, capacity, 0);
+        for (int id = 0; id < numTerms; id++) {
+            if (++bucketCounts[bucket(termHashes[id], capacity)] > TREEIFY_THRESHOLD) {
+                return true;
+            }
+            // the map doubles once it is more than 3/4 full
+            if (id + 1 > capacity * 3 / 4) {
+                capacity <<= 1;
+                if (bucketCounts.length < capacity + 1) {
+                    bucketCounts = new int[capacity + 1];
+                }
+                Arrays.fill(bucketCounts, 0, capacity, 0);
+                for (int i = 0; i <= id; i++) {
+                    bucketCounts[bucket(termHashes[i], capacity)]++;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the orders from HashMaps of the term strings, as this filter used to build them: the sums are in the
+     * order of a map of the terms put in the order of first occurrence, and the tokens are emitted in the order of a
+     * second map the terms are put in in the order of the first.
+     */
+    private void sortByHashMaps() {
+        final Map<String, Integer> termIds = new HashMap<String, Integer>();
+        for (int id = 0; id < numTerms; id++) {
+            termIds.put(new String(termChars, termStarts[id], termLengths[id]), id);
+        }
+        growEmitOrder();
+        if (sumOrder == emitOrder || sumOrder.length < emitOrder.length) {
+            sumOrder = new int[emitOrder.length];
+        }
+        final Map<String, Integer> meanIds = new HashMap<String, Integer>();
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : termIds.entrySet()) {
+            sumOrder[i++] = entry.getValue();
+            meanIds.put(entry.getKey(), entry.getValue());
+        }
+        i = 0;
+        for (Integer id : meanIds.values()) {
+            emitOrder[i++] = id;
+        }
+    }
+
+    private void growEmitOrder() {
+        if (emitOrder.length < numTerms) {
+            emitOrder = new int[ArrayUtil.oversize(numTerms, 4)];
+            normedPayloads = new float[emitOrder.length];
+        }
+    }
+
+    private static int bucket(int hash, int capacity) {
+        return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+
+    /**
+     * @return the String.hashCode() of the chars
+     */
+    private static int hash(char[] chars, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h;
+    }
+
+    /**
+     * @return the id of the term, or -1 if it hasn't been seen
+     */
+    private int find(char[] chars, int length, int hash) {
+        final int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int id = table[slot] - 1;
+            if (termHashes[id] == hash && termLengths[id] == length && termEquals(chars, length, termStarts[id])) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private boolean termEquals(char[] chars, int length, int start) {
+        for (int i = 0; i < length; i++) {
+            if (termChars[start + i] != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a term not yet seen
+     *
+     * @return the id of the term
+     */
+    private int add(char[] chars, int length, int hash) {
+        final int id = numTerms++;
+        if (id == termStarts.length) {
+            final int size = ArrayUtil.oversize(id + 1, 4);
+            termStarts = Arrays.copyOf(termStarts, size);
+            termLengths = Arrays.copyOf(termLengths, size);
+            termHashes = Arrays.copyOf(termHashes, size);
+            totalPayloads = Arrays.copyOf(totalPayloads, size);
+            tokenCounts = Arrays.copyOf(tokenCounts, size);
+        }
+        termChars = ArrayUtil.grow(termChars, termCharsLength + length);
+        System.arraycopy(chars, 0, termChars, termCharsLength, length);
+        termStarts[id] = termCharsLength;
+        termLengths[id] = length;
+        termHashes[id] = hash;
+        termCharsLength += length;
+
+        if (numTerms * 2 > table.length) {
+            table = new int[table.length * 2];
+            for (int i = 0; i < numTerms; i++) {
+                insert(i);
+            }
+        } else {
+            insert(id);
+        }
+        return id;
+    }
+
+    private void insert(int id) {
+        final int mask = table.length - 1;
+        int slot = termHashes[id] & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
     }
 
     @Override
     public void reset( )  throws IOException {
-        this.averagePayloadQueue.clear();
+        Arrays.fill(table, 0);
+        this.numTerms = 0;
+        this.termCharsLength = 0;
+        this.cursor = 0;
         this.processedPayloads = false;
         super.reset();
     }
-
-    public class Tuple<X, Y> {
-        public final X x;
-        public final Y y;
-        public Tuple(X x, Y y) {
-            this.x = x;
-            this.y = y;
-        }
-    }
 }
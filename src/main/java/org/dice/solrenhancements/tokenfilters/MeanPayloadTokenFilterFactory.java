@@ -10,13 +10,19 @@ import java.util.Map;
  */
 public class MeanPayloadTokenFilterFactory extends TokenFilterFactory {
 
+    // float (default), or byte or short to quantize the payloads to fractions of payloadScale
+    private final String PAYLOAD_ENCODING_KEY = "payloadEncoding";
+    private final String PAYLOAD_SCALE_KEY = "payloadScale";
+    private final PayloadCodec codec;
+
     public MeanPayloadTokenFilterFactory(Map<String, String> args) {
         super(args);
+        this.codec = PayloadCodec.fromArgs(args.get(PAYLOAD_ENCODING_KEY), args.get(PAYLOAD_SCALE_KEY));
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        return new MeanPayloadTokenFilter(tokenStream);
+        return new MeanPayloadTokenFilter(tokenStream, this.codec);
     }
 
 }
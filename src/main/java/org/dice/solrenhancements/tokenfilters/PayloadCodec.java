@@ -0,0 +1,121 @@
+package org.dice.solrenhancements.tokenfilters;
+
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Locale;
+
+/**
+ * Encodes term weights as payloads, either as 4 byte floats (PayloadHelper) or quantized to a byte or a short.
+ *
+ * A quantized weight is stored as a fraction of the scale, so weights from 0 up to the scale keep 8 or 16 bits of
+ * precision and anything outside that range is clamped to it. Normalized weights, as from MeanPayloadTokenFilter, are
+ * all in [0, 1], the default scale. The encoding is told apart by the payload length when decoding, so only the scale
+ * has to be known to read the weights back.
+ */
+public final class PayloadCodec {
+
+    public static final float DEFAULT_SCALE = 1.0f;
+    public static final PayloadCodec FLOAT = new PayloadCodec(Encoding.FLOAT, DEFAULT_SCALE);
+
+    public enum Encoding {
+        FLOAT(4, 0),
+        BYTE(1, 0xFF),
+        SHORT(2, 0xFFFF);
+
+        private final int length;
+        private final int maxValue;
+
+        Encoding(int length, int maxValue) {
+            this.length = length;
+            this.maxValue = maxValue;
+        }
+
+        public static Encoding get(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown payload encoding: " + name + ", expected float, byte or short");
+            }
+        }
+    }
+
+    private final Encoding encoding;
+    private final float scale;
+
+    /**
+     * @param scale the largest weight a quantized payload holds
+     */
+    public PayloadCodec(Encoding encoding, float scale) {
+        if (!(scale > 0.0f)) {
+            throw new IllegalArgumentException("The payload scale must be positive: " + scale);
+        }
+        this.encoding = encoding;
+        this.scale = scale;
+    }
+
+    /**
+     * @return the largest weight a quantized payload holds
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return the payload length
+     */
+    public int length() {
+        return encoding.length;
+    }
+
+    /**
+     * Writes the weight at the offset, which must have {@link #length()} bytes available
+     *
+     * @return the payload length
+     */
+    public int encode(float weight, byte[] bytes, int offset) {
+        if (encoding == Encoding.FLOAT) {
+            PayloadHelper.encodeFloat(weight, bytes, offset);
+            return encoding.length;
+        }
+        final float fraction = Math.min(1.0f, Math.max(0.0f, weight / scale));
+        final int value = Math.round(fraction * encoding.maxValue);
+        if (encoding == Encoding.SHORT) {
+            bytes[offset] = (byte) (value >>> 8);
+            bytes[offset + 1] = (byte) value;
+        } else {
+            bytes[offset] = (byte) value;
+        }
+        return encoding.length;
+    }
+
+    /**
+     * Decodes a payload of any of the encodings
+     *
+     * @param scale the scale the payload was quantized with, ignored for a float payload
+     */
+    public static float decode(BytesRef payload, float scale) {
+        return decode(payload.bytes, payload.offset, payload.length, scale);
+    }
+
+    public static float decode(byte[] bytes, int offset, int length, float scale) {
+        switch (length) {
+            case 1:
+                return (bytes[offset] & 0xFF) * scale / Encoding.BYTE.maxValue;
+            case 2:
+                return (((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF)) * scale / Encoding.SHORT.maxValue;
+            default:
+                return PayloadHelper.decodeFloat(bytes, offset);
+        }
+    }
+
+    /**
+     * Reads the payloadEncoding (float, byte or short) and payloadScale arguments of a token filter factory
+     */
+    public static PayloadCodec fromArgs(String encoding, String scale) {
+        if (encoding == null) {
+            return FLOAT;
+        }
+        return new PayloadCodec(Encoding.get(encoding), scale == null ? DEFAULT_SCALE : Float.parseFloat(scale));
+    }
+}
@@ -2,7 +2,6 @@ package org.dice.solrenhancements.tokenfilters;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.payloads.PayloadHelper;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.util.BytesRef;
@@ -14,13 +13,23 @@ import java.io.IOException;
  */
 public class PayloadQueryBoostTokenFilter extends TokenFilter {
 
+    private final float payloadScale;
+
     /**
      * Construct a token stream filtering the given input.
      *
      * @param input
      */
     protected PayloadQueryBoostTokenFilter(TokenStream input) {
+        this(input, PayloadCodec.DEFAULT_SCALE);
+    }
+
+    /**
+     * @param payloadScale the scale of quantized payloads, see {@link PayloadCodec}
+     */
+    protected PayloadQueryBoostTokenFilter(TokenStream input, float payloadScale) {
         super(input);
+        this.payloadScale = payloadScale;
     }
 
     @Override
@@ -36,7 +45,7 @@ public class PayloadQueryBoostTokenFilter extends TokenFilter {
                 return true;
             }
 
-            float payloadValue = PayloadHelper.decodeFloat(payload.bytes, payload.offset);
+            float payloadValue = PayloadCodec.decode(payload, payloadScale);
             if(payloadValue == 0.0f){
                 return true;
             }
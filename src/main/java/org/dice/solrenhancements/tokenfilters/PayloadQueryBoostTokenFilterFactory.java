@@ -10,13 +10,20 @@ import java.util.Map;
  */
 public class PayloadQueryBoostTokenFilterFactory extends TokenFilterFactory {
 
+    // the payloadScale the payloads were quantized with, if they were
+    private final String PAYLOAD_SCALE_KEY = "payloadScale";
+    private float payloadScale = PayloadCodec.DEFAULT_SCALE;
+
     public PayloadQueryBoostTokenFilterFactory(Map<String, String> args) {
         super(args);
+        if (args.containsKey(PAYLOAD_SCALE_KEY)){
+            this.payloadScale = Float.parseFloat(args.get(PAYLOAD_SCALE_KEY));
+        }
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        return new PayloadQueryBoostTokenFilter(tokenStream);
+        return new PayloadQueryBoostTokenFilter(tokenStream, this.payloadScale);
     }
 
 }
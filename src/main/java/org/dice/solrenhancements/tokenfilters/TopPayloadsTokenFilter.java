@@ -0,0 +1,152 @@
+package org.dice.solrenhancements.tokenfilters;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps only the highest weighted tokens of a document, by payload, and renormalizes their payloads.
+ *
+ * Meant to follow MeanPayloadTokenFilter, which leaves one token per term with its normalized weight: the long tail
+ * of near zero weights is dropped, keeping at most maxTokens tokens and only those weighing at least minWeight.
+ * The kept payloads are divided by the length of the kept vector so it is normalized again, and the tokens are
+ * emitted in their input order. Tokens without a payload are dropped, and ties at the cut off keep the first token.
+ */
+public class TopPayloadsTokenFilter extends TokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+    private final int maxTokens;
+    private final float minWeight;
+    private final PayloadCodec codec;
+
+    // the chars of the input tokens, back to back, and their weights
+    private char[] termChars = new char[256];
+    private int termCharsLength = 0;
+    private int[] termStarts = new int[16];
+    private int[] termLengths = new int[16];
+    private float[] weights = new float[16];
+    private int numTokens = 0;
+
+    // the ids of the kept tokens, in input order
+    private int[] kept = new int[16];
+    private int numKept = 0;
+    private float vectorLength = 1.0f;
+    private int cursor = 0;
+    private boolean processed = false;
+
+    private final BytesRef payload = new BytesRef(new byte[4]);
+
+    /**
+     * @param maxTokens the most tokens kept, or 0 for no limit
+     * @param minWeight the least weight of a kept token
+     * @param codec reads and writes the payloads
+     */
+    protected TopPayloadsTokenFilter(TokenStream input, int maxTokens, float minWeight, PayloadCodec codec) {
+        super(input);
+        this.maxTokens = maxTokens;
+        this.minWeight = minWeight;
+        this.codec = codec;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        if (!processed) {
+            consumeInput();
+            selectTokens();
+            processed = true;
+        }
+
+        if (cursor < numKept) {
+            clearAttributes();
+            final int id = kept[cursor];
+            termAtt.copyBuffer(termChars, termStarts[id], termLengths[id]);
+            payload.length = codec.encode(weights[id] / vectorLength, payload.bytes, 0);
+            payloadAtt.setPayload(payload);
+            cursor++;
+            return true;
+        }
+        return false;
+    }
+
+    private void consumeInput() throws IOException {
+        while (input.incrementToken()) {
+            final BytesRef tokenPayload = payloadAtt.getPayload();
+            if (tokenPayload == null) {
+                continue;
+            }
+            final int id = numTokens++;
+            if (id == termStarts.length) {
+                final int size = ArrayUtil.oversize(id + 1, 4);
+                termStarts = Arrays.copyOf(termStarts, size);
+                termLengths = Arrays.copyOf(termLengths, size);
+                weights = Arrays.copyOf(weights, size);
+            }
+            final int length = termAtt.length();
+            termChars = ArrayUtil.grow(termChars, termCharsLength + length);
+            System.arraycopy(termAtt.buffer(), 0, termChars, termCharsLength, length);
+            termStarts[id] = termCharsLength;
+            termLengths[id] = length;
+            weights[id] = PayloadCodec.decode(tokenPayload, codec.getScale());
+            termCharsLength += length;
+        }
+    }
+
+    /**
+     * Finds the tokens to keep, in input order, and the length of their weight vector
+     */
+    private void selectTokens() {
+        if (kept.length < numTokens) {
+            kept = new int[ArrayUtil.oversize(numTokens, 4)];
+        }
+        numKept = 0;
+        for (int id = 0; id < numTokens; id++) {
+            if (weights[id] >= minWeight) {
+                kept[numKept++] = id;
+            }
+        }
+
+        if (maxTokens > 0 && numKept > maxTokens) {
+            // highest weight first, stable so ties keep the earlier token, then the top back in input order
+            new InPlaceMergeSorter() {
+                @Override
+                protected int compare(int i, int j) {
+                    return Float.compare(weights[kept[j]], weights[kept[i]]);
+                }
+
+                @Override
+                protected void swap(int i, int j) {
+                    final int tmp = kept[i];
+                    kept[i] = kept[j];
+                    kept[j] = tmp;
+                }
+            }.sort(0, numKept);
+            numKept = maxTokens;
+            Arrays.sort(kept, 0, numKept);
+        }
+
+        double vectorLengthSq = 0.0;
+        for (int i = 0; i < numKept; i++) {
+            vectorLengthSq += weights[kept[i]] * weights[kept[i]];
+        }
+        vectorLength = vectorLengthSq > 0.0 ? (float) Math.sqrt(vectorLengthSq) : 1.0f;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        this.termCharsLength = 0;
+        this.numTokens = 0;
+        this.numKept = 0;
+        this.cursor = 0;
+        this.processed = false;
+        super.reset();
+    }
+}
@@ -0,0 +1,39 @@
+package org.dice.solrenhancements.tokenfilters;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+
+import java.util.Map;
+
+/**
+ * Creates a {@link TopPayloadsTokenFilter}, to follow a MeanPayloadTokenFilter. Takes maxTokens (0, the default, for
+ * no limit), minWeight (default 0), and the payloadEncoding and payloadScale of the payloads it reads and writes.
+ */
+public class TopPayloadsTokenFilterFactory extends TokenFilterFactory {
+
+    private final String MAX_TOKENS_KEY = "maxTokens";
+    private final String MIN_WEIGHT_KEY = "minWeight";
+    private final String PAYLOAD_ENCODING_KEY = "payloadEncoding";
+    private final String PAYLOAD_SCALE_KEY = "payloadScale";
+
+    private int maxTokens = 0;
+    private float minWeight = 0.0f;
+    private final PayloadCodec codec;
+
+    public TopPayloadsTokenFilterFactory(Map<String, String> args) {
+        super(args);
+        if (args.containsKey(MAX_TOKENS_KEY)){
+            this.maxTokens = Integer.parseInt(args.get(MAX_TOKENS_KEY));
+        }
+        if (args.containsKey(MIN_WEIGHT_KEY)){
+            this.minWeight = Float.parseFloat(args.get(MIN_WEIGHT_KEY));
+        }
+        this.codec = PayloadCodec.fromArgs(args.get(PAYLOAD_ENCODING_KEY), args.get(PAYLOAD_SCALE_KEY));
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        return new TopPayloadsTokenFilter(tokenStream, this.maxTokens, this.minWeight, this.codec);
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.dice.solrenhancements.queryparsers;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.search.SyntaxError;
+import org.dice.solrenhancements.tokenfilters.PayloadCodec;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class PayloadBoostQParserPluginTest {
+
+    private static final String FIELD = "skills";
+
+    /**
+     * Analyzes "term|weight" tokens into terms with float payloads, or payloads quantized by the codec
+     */
+    private static Analyzer analyzer(final PayloadCodec codec) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                TokenStream stream = new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder());
+                if (codec != null) {
+                    stream = new ReencodingFilter(stream, codec);
+                }
+                return new TokenStreamComponents(tokenizer, stream);
+            }
+        };
+    }
+
+    private static BooleanQuery query(String text, String mm) {
+        return (BooleanQuery) PayloadBoostQParserPlugin.buildQuery(analyzer(null), FIELD, text, PayloadCodec.DEFAULT_SCALE, mm);
+    }
+
+    private static BooleanQuery expected(String[] terms, float[] weights, int minShouldMatch) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < terms.length; i++) {
+            builder.add(new BoostQuery(new TermQuery(new Term(FIELD, terms[i])), weights[i]), BooleanClause.Occur.SHOULD);
+        }
+        builder.setMinimumNumberShouldMatch(minShouldMatch);
+        return builder.build();
+    }
+
+    @Test
+    public void clausesAreWeightedByTheDecodedPayloads() {
+        assertEquals(expected(new String[]{"java", "solr", "lucene"}, new float[]{0.5f, 2.25f, 0.123456f}, 0),
+                query("java|0.5 solr|2.25 lucene|0.123456", null));
+    }
+
+    @Test
+    public void weightsInScientificNotationAreKept() {
+        assertEquals(expected(new String[]{"java", "solr"}, new float[]{1.0E-5f, 3.5E7f}, 0),
+                query("java|1.0E-5 solr|3.5E7", null));
+    }
+
+    @Test
+    public void zeroAndMissingPayloadsAreSkipped() {
+        assertEquals(expected(new String[]{"solr"}, new float[]{0.75f}, 0),
+                query("java|0 solr|0.75 lucene ruby|0.0", null));
+        assertEquals(0, query("java lucene", null).clauses().size());
+        assertEquals(0, query(null, null).clauses().size());
+    }
+
+    @Test
+    public void minimumShouldMatch() {
+        String[] terms = {"java", "solr", "lucene", "hadoop"};
+        float[] weights = {1, 2, 3, 4};
+        String text = "java|1 solr|2 lucene|3 hadoop|4";
+        assertEquals(expected(terms, weights, 2), query(text, "2"));
+        assertEquals(expected(terms, weights, 3), query(text, "75%"));
+        assertEquals(expected(terms, weights, 3), query(text, "-1"));
+        // mm counts the clauses left after skipping the zero payloads
+        assertEquals(expected(new String[]{"java", "solr"}, new float[]{1, 2}, 1),
+                query("java|1 solr|2 lucene|0 hadoop|0", "50%"));
+    }
+
+    @Test
+    public void quantizedPayloadsAreDecodedWithTheScale() throws Exception {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.BYTE, 4.0f);
+        BooleanQuery query = (BooleanQuery) PayloadBoostQParserPlugin.buildQuery(analyzer(codec), FIELD,
+                "java|4 solr|1", PayloadBoostQParserPlugin.parseScale("4"), null);
+        assertEquals(2, query.clauses().size());
+        assertEquals(4.0f, ((BoostQuery) query.clauses().get(0).getQuery()).getBoost(), 0.0f);
+        assertEquals(1.0f, ((BoostQuery) query.clauses().get(1).getQuery()).getBoost(), 4.0f / 255);
+    }
+
+    @Test
+    public void scaleDefaultsToOne() throws Exception {
+        assertEquals(PayloadCodec.DEFAULT_SCALE, PayloadBoostQParserPlugin.parseScale(null), 0.0f);
+        assertEquals(2.5f, PayloadBoostQParserPlugin.parseScale("2.5"), 0.0f);
+    }
+
+    @Test(expected = SyntaxError.class)
+    public void scaleMustBeANumber() throws Exception {
+        PayloadBoostQParserPlugin.parseScale("big");
+    }
+
+    @Test(expected = SyntaxError.class)
+    public void scaleMustBePositive() throws Exception {
+        PayloadBoostQParserPlugin.parseScale("0");
+    }
+
+    /**
+     * Re-encodes the float payloads with the codec
+     */
+    private static final class ReencodingFilter extends TokenFilter {
+        private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+        private final PayloadCodec codec;
+
+        private ReencodingFilter(TokenStream input, PayloadCodec codec) {
+            super(input);
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (!input.incrementToken()) {
+                return false;
+            }
+            BytesRef payload = payloadAtt.getPayload();
+            if (payload != null) {
+                byte[] bytes = new byte[codec.length()];
+                codec.encode(PayloadHelper.decodeFloat(payload.bytes, payload.offset), bytes, 0);
+                payloadAtt.setPayload(new BytesRef(bytes));
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MaxScoreTopDocsTest {
+
+    private static final int NUM_DOCS = 2000;
+    private static final int DOCS_PER_SEGMENT = 500;
+    private static final int WORDS_PER_DOC = 30;
+    private static final int VOCABULARY_SIZE = 500;
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        IndexWriter writer = new IndexWriter(directory, config);
+        // skewed towards the low terms, with varying lengths so the norms differ
+        Random random = new Random(7L);
+        for (int i = 0; i < NUM_DOCS; i++) {
+            StringBuilder text = new StringBuilder();
+            final int numWords = 1 + random.nextInt(WORDS_PER_DOC);
+            for (int word = 0; word < numWords; word++) {
+                final double r = random.nextDouble();
+                text.append('t').append((int) (VOCABULARY_SIZE * r * r)).append(' ');
+            }
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+            document.add(new Field("body", text.toString(), TextField.TYPE_NOT_STORED));
+            writer.addDocument(document);
+            if ((i + 1) % DOCS_PER_SEGMENT == 0) {
+                writer.commit();
+            }
+        }
+        for (int i = 0; i < NUM_DOCS; i += 11) {
+            writer.deleteDocuments(new Term("id", Integer.toString(i)));
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new ClassicSimilarity());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    /**
+     * @return a query of terms spread from the most to the least frequent, with decreasing weights
+     */
+    private static WeightedTermsQuery query(int numTerms, int minShouldMatch) {
+        Term[] terms = new Term[numTerms];
+        float[] weights = new float[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            terms[i] = new Term("body", "t" + (i * VOCABULARY_SIZE / numTerms));
+            weights[i] = 1.0f / (1 + i);
+        }
+        return new WeightedTermsQuery(terms, weights, new TermContext[numTerms], minShouldMatch);
+    }
+
+    private static void assertSameTopDocs(TopDocs expected, TopDocs actual) {
+        assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+        for (int i = 0; i < expected.scoreDocs.length; i++) {
+            final float score = expected.scoreDocs[i].score;
+            assertEquals("hit " + i, expected.scoreDocs[i].doc, actual.scoreDocs[i].doc);
+            assertEquals("hit " + i, score, actual.scoreDocs[i].score, score * 1e-5f);
+        }
+        assertEquals(expected.getMaxScore(), actual.getMaxScore(), expected.getMaxScore() * 1e-5f);
+        // pruned docs are not counted
+        assertTrue(actual.totalHits <= expected.totalHits);
+        assertTrue(actual.totalHits >= actual.scoreDocs.length);
+    }
+
+    @Test
+    public void topDocsMatchTopScoreDocCollector() throws Exception {
+        for (int numTerms : new int[]{1, 5, 25, 100}) {
+            for (int numHits : new int[]{1, 10, 100}) {
+                WeightedTermsQuery query = query(numTerms, 0);
+                assertSameTopDocs(searcher.search(query, numHits), MaxScoreTopDocs.search(searcher, query, null, numHits));
+            }
+        }
+    }
+
+    @Test
+    public void maxNormDocsAreEvictedWhenTheSegmentCoreIsClosed() throws Exception {
+        MaxScoreTopDocs.search(searcher, query(5, 0), null, 10);
+        List<Object> coreKeys = new ArrayList<Object>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            coreKeys.add(leaf.reader().getCoreCacheKey());
+            assertTrue(MaxScoreTopDocs.hasMaxNormDocs(leaf.reader().getCoreCacheKey()));
+        }
+        reader.close();
+        for (Object coreKey : coreKeys) {
+            assertFalse(MaxScoreTopDocs.hasMaxNormDocs(coreKey));
+        }
+        // for tearDown
+        reader = DirectoryReader.open(directory);
+    }
+
+    @Test
+    public void docsArePruned() throws Exception {
+        WeightedTermsQuery query = query(100, 0);
+        assertTrue(MaxScoreTopDocs.search(searcher, query, null, 1).totalHits < searcher.search(query, 1).totalHits);
+    }
+
+    @Test
+    public void topDocsWithMinShouldMatch() throws Exception {
+        WeightedTermsQuery query = query(25, 3);
+        assertSameTopDocs(searcher.search(query, 10), MaxScoreTopDocs.search(searcher, query, null, 10));
+    }
+
+    @Test
+    public void fewerHitsThanRequested() throws Exception {
+        WeightedTermsQuery query = query(5, 4);
+        TopDocs expected = searcher.search(query, NUM_DOCS);
+        assertTrue(expected.scoreDocs.length < 100);
+        assertSameTopDocs(expected, MaxScoreTopDocs.search(searcher, query, null, 100));
+    }
+
+    @Test
+    public void onlyAcceptedDocsAreReturned() throws Exception {
+        FixedBitSet acceptDocs = new FixedBitSet(reader.maxDoc());
+        for (int doc = 0; doc < reader.maxDoc(); doc += 2) {
+            acceptDocs.set(doc);
+        }
+        WeightedTermsQuery query = query(25, 0);
+        List<ScoreDoc> accepted = new ArrayList<ScoreDoc>();
+        int totalHits = 0;
+        for (ScoreDoc scoreDoc : searcher.search(query, NUM_DOCS).scoreDocs) {
+            if (acceptDocs.get(scoreDoc.doc)) {
+                totalHits++;
+                if (accepted.size() < 10) {
+                    accepted.add(scoreDoc);
+                }
+            }
+        }
+        TopDocs expected = new TopDocs(totalHits, accepted.toArray(new ScoreDoc[accepted.size()]), accepted.get(0).score);
+        assertSameTopDocs(expected, MaxScoreTopDocs.search(searcher, query, acceptDocs, 10));
+    }
+
+    @Test
+    public void notUsedWithoutATFIDFSimilarity() throws Exception {
+        IndexSearcher bm25Searcher = new IndexSearcher(reader);
+        bm25Searcher.setSimilarity(new BM25Similarity());
+        assertNull(MaxScoreTopDocs.search(bm25Searcher, query(5, 0), null, 10));
+        assertNull(MaxScoreTopDocs.search(searcher, query(5, 0), null, 0));
+    }
+}
@@ -0,0 +1,85 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapPagesTest {
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void entriesAreWrittenToChunksOfTheirSizeClass() {
+        OffHeapPages pages = new OffHeapPages(4096, 1024);
+        List<OffHeapPages.Slot> victims = new ArrayList<OffHeapPages.Slot>();
+        OffHeapPages.Slot small = pages.allocate(10, "a", victims);
+        OffHeapPages.Slot small2 = pages.allocate(64, "b", victims);
+        OffHeapPages.Slot large = pages.allocate(1000, "c", victims);
+
+        assertEquals(64, small.chunkSize);
+        assertEquals(small.page, small2.page);
+        assertEquals(64, small2.offset);
+        assertEquals(1024, large.chunkSize);
+        assertTrue(large.page != small.page);
+        assertEquals(2048L, pages.getAllocatedBytes());
+        assertEquals(64L + 64 + 1024, pages.getUsedBytes());
+
+        pages.write(small, bytes(10, 1));
+        pages.write(small2, bytes(64, 2));
+        pages.write(large, bytes(1000, 3));
+        assertArrayEquals(bytes(10, 1), pages.read(small));
+        assertArrayEquals(bytes(64, 2), pages.read(small2));
+        assertArrayEquals(bytes(1000, 3), pages.read(large));
+        assertTrue(victims.isEmpty());
+        assertNull(pages.allocate(1025, "d", victims));
+    }
+
+    @Test
+    public void emptyPagesAreReusedForAnySizeClass() {
+        OffHeapPages pages = new OffHeapPages(1024, 1024);
+        List<OffHeapPages.Slot> victims = new ArrayList<OffHeapPages.Slot>();
+        OffHeapPages.Slot small = pages.allocate(10, "a", victims);
+        // the only page is carved into 64 byte chunks
+        assertNull(pages.allocate(1000, "b", victims));
+        assertEquals(1, victims.size());
+        assertSame(small, victims.get(0));
+
+        assertTrue(small.release());
+        pages.free(small);
+        assertEquals(0L, pages.getUsedBytes());
+        OffHeapPages.Slot large = pages.allocate(1000, "b", new ArrayList<OffHeapPages.Slot>());
+        assertNotNull(large);
+        assertEquals(0, large.offset);
+        assertEquals(1024L, pages.getAllocatedBytes());
+    }
+
+    @Test
+    public void retainedSlotsAreOnlyFreedOnTheirLastRelease() {
+        OffHeapPages pages = new OffHeapPages(1024, 1024);
+        OffHeapPages.Slot slot = pages.allocate(10, "a", new ArrayList<OffHeapPages.Slot>());
+        assertTrue(slot.retain());
+        // the cache's reference goes, the reader's stays
+        assertFalse(slot.release());
+        assertTrue(slot.release());
+        assertFalse(slot.retain());
+
+        pages.free(slot);
+        pages.free(slot);
+        assertEquals(0L, pages.getUsedBytes());
+    }
+}
@@ -0,0 +1,203 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.payloads.AveragePayloadFunction;
+import org.apache.lucene.queries.payloads.PayloadScoreQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.dice.solrenhancements.tokenfilters.PayloadCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadWeightedTermQueryTest {
+
+    private static final String[] DOCS = {
+            "java|0.5 solr|0.25",
+            "java|0.75 java|0.25 lucene|1.0",
+            "python|0.5 solr",
+            "solr|2.0 solr|1.0 solr|0.0 java|0.1",
+            "lucene|0.3",
+    };
+
+    // decodes the payloads as PayloadWeightedTermQuery does, as a payload aware similarity in Solr would
+    private static final ClassicSimilarity PAYLOAD_SIMILARITY = new ClassicSimilarity() {
+        @Override
+        public float scorePayload(int doc, int start, int end, BytesRef payload) {
+            return payload == null ? 1.0f : PayloadCodec.decode(payload, PayloadCodec.DEFAULT_SCALE);
+        }
+    };
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    @Before
+    public void setUp() throws Exception {
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                final Tokenizer tokenizer = new WhitespaceTokenizer();
+                TokenStream stream = new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder());
+                return new TokenStreamComponents(tokenizer, stream);
+            }
+        };
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+        for (String text : DOCS) {
+            Document document = new Document();
+            document.add(new Field("skills", text, TextField.TYPE_NOT_STORED));
+            writer.addDocument(document);
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(PAYLOAD_SIMILARITY);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    private Map<Integer, Float> scores(Query query) throws Exception {
+        Map<Integer, Float> scores = new HashMap<Integer, Float>();
+        for (ScoreDoc scoreDoc : searcher.search(query, DOCS.length).scoreDocs) {
+            scores.put(scoreDoc.doc, scoreDoc.score);
+        }
+        return scores;
+    }
+
+    private static void assertSameScores(Map<Integer, Float> expected, Map<Integer, Float> actual) {
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Integer, Float> entry : expected.entrySet()) {
+            assertEquals("doc " + entry.getKey(), entry.getValue(), actual.get(entry.getKey()), 1e-6f);
+        }
+    }
+
+    @Test
+    public void scoresTheMeanPayload() throws Exception {
+        Map<Integer, Float> scores = scores(new PayloadWeightedTermQuery(new Term("skills", "java"), null, PayloadCodec.DEFAULT_SCALE));
+        assertEquals(3, scores.size());
+        assertEquals(0.5f, scores.get(0), 1e-6f);
+        assertEquals(0.5f, scores.get(1), 1e-6f);
+        assertEquals(0.1f, scores.get(3), 1e-6f);
+    }
+
+    @Test
+    public void scoresAsPayloadScoreQuery() throws Exception {
+        for (String text : new String[]{"java", "solr", "lucene", "python"}) {
+            Term term = new Term("skills", text);
+            Query expected = new BoostQuery(new PayloadScoreQuery(new SpanTermQuery(term), new AveragePayloadFunction(), false), 2.0f);
+            Query actual = new BoostQuery(new PayloadWeightedTermQuery(term, null, PayloadCodec.DEFAULT_SCALE), 2.0f);
+            assertSameScores(scores(expected), scores(actual));
+        }
+    }
+
+    @Test
+    public void clauseBoostsWeighThePayloads() throws Exception {
+        // unlike PayloadScoreQuery without the span score, which ignores the boost and query norm
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new BoostQuery(new PayloadWeightedTermQuery(new Term("skills", "java"), null, PayloadCodec.DEFAULT_SCALE), 2.0f),
+                BooleanClause.Occur.SHOULD);
+        builder.add(new BoostQuery(new PayloadWeightedTermQuery(new Term("skills", "solr"), null, PayloadCodec.DEFAULT_SCALE), 0.5f),
+                BooleanClause.Occur.SHOULD);
+        Map<Integer, Float> scores = scores(builder.build());
+
+        final float queryNorm = (float) (1.0 / Math.sqrt(2.0f * 2.0f + 0.5f * 0.5f));
+        assertEquals(queryNorm * (2.0f * 0.5f + 0.5f * 0.25f), scores.get(0), 1e-6f);
+        // half the clauses match
+        assertEquals(queryNorm * 0.5f * 2.0f * 0.5f, scores.get(1), 1e-6f);
+    }
+
+    @Test
+    public void scoreCanBeCalledMoreThanOnce() throws Exception {
+        PayloadWeightedTermQuery query = new PayloadWeightedTermQuery(new Term("skills", "solr"), null, PayloadCodec.DEFAULT_SCALE);
+        Weight weight = searcher.createNormalizedWeight(query, true);
+        int matches = 0;
+        for (LeafReaderContext context : reader.leaves()) {
+            Scorer scorer = weight.scorer(context);
+            if (scorer == null) {
+                continue;
+            }
+            for (int doc = scorer.iterator().nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = scorer.iterator().nextDoc()) {
+                final float score = scorer.score();
+                assertEquals(score, scorer.score(), 0.0f);
+                assertEquals(score, searcher.explain(query, context.docBase + doc).getValue(), 1e-6f);
+                matches++;
+            }
+        }
+        assertEquals(3, matches);
+    }
+
+    @Test
+    public void decodesQuantizedPayloadsWithTheScale() throws Exception {
+        final float scale = 4.0f;
+        final PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.SHORT, scale);
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                final Tokenizer tokenizer = new WhitespaceTokenizer();
+                TokenStream stream = new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder() {
+                    @Override
+                    public BytesRef encode(char[] buffer, int offset, int length) {
+                        final float weight = PayloadHelper.decodeFloat(super.encode(buffer, offset, length).bytes);
+                        final byte[] bytes = new byte[codec.length()];
+                        codec.encode(weight, bytes, 0);
+                        return new BytesRef(bytes);
+                    }
+                });
+                return new TokenStreamComponents(tokenizer, stream);
+            }
+        };
+        Directory quantizedDirectory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(quantizedDirectory, new IndexWriterConfig(analyzer));
+        Document document = new Document();
+        document.add(new Field("skills", "java|3.0 java|1.0", TextField.TYPE_NOT_STORED));
+        writer.addDocument(document);
+        writer.close();
+        DirectoryReader quantizedReader = DirectoryReader.open(quantizedDirectory);
+        try {
+            IndexSearcher quantizedSearcher = new IndexSearcher(quantizedReader);
+            float score = quantizedSearcher.search(new PayloadWeightedTermQuery(new Term("skills", "java"), null, scale), 1).scoreDocs[0].score;
+            assertEquals(2.0f, score, scale / 0xFFFF);
+        } finally {
+            quantizedReader.close();
+            quantizedDirectory.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RelevancyFeedbackExecutorTest {
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void handlersShareOneBoundedPool() {
+        ExecutorService first = RelevancyFeedbackExecutor.acquire(2);
+        ExecutorService second = RelevancyFeedbackExecutor.acquire(1000);
+        try {
+            assertSame(first, second);
+            assertEquals(PROCESSORS, ((ThreadPoolExecutor) first).getMaximumPoolSize());
+        } finally {
+            RelevancyFeedbackExecutor.release(second);
+        }
+        // still used by the first handler
+        assertFalse(first.isShutdown());
+        RelevancyFeedbackExecutor.release(first);
+        assertTrue(first.isShutdown());
+
+        ExecutorService next = RelevancyFeedbackExecutor.acquire(2);
+        try {
+            assertNotSame(first, next);
+            assertEquals(Math.min(2, PROCESSORS), ((ThreadPoolExecutor) next).getMaximumPoolSize());
+        } finally {
+            RelevancyFeedbackExecutor.release(next);
+        }
+    }
+
+    @Test
+    public void tasksRunInTheCallerWhenTheQueueIsFull() throws Exception {
+        ExecutorService executor = RelevancyFeedbackExecutor.acquire(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            // one task occupies each thread, and the rest fill the queue
+            int poolSize = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+            for (int i = 0; i < poolSize + RelevancyFeedbackExecutor.MAX_QUEUED_TASKS; i++) {
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        blocked.await();
+                        return null;
+                    }
+                });
+            }
+            Future<Thread> overflow = executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            });
+            assertSame(Thread.currentThread(), overflow.get());
+        } finally {
+            blocked.countDown();
+            RelevancyFeedbackExecutor.release(executor);
+        }
+    }
+}
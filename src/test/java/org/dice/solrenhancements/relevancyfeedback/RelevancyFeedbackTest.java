@@ -0,0 +1,226 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RelevancyFeedbackTest {
+
+    private static final String[] DOCS = {
+            "java java java solr lucene",
+            "java spring spring hibernate",
+            "python django django flask",
+            "solr solr lucene lucene java",
+            "java python solr spring django",
+    };
+
+    private Directory directory;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        FieldType withTermVectors = new FieldType(TextField.TYPE_STORED);
+        withTermVectors.setStoreTermVectors(true);
+        withTermVectors.freeze();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        for (String text : DOCS) {
+            Document document = new Document();
+            document.add(new Field("body", text, withTermVectors));
+            document.add(new Field("stored", text, TextField.TYPE_STORED));
+            writer.addDocument(document);
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    private RelevancyFeedback relevancyFeedback(String... fieldNames) {
+        RelevancyFeedback relevancyFeedback = new RelevancyFeedback(reader);
+        relevancyFeedback.setAnalyzer(new WhitespaceAnalyzer());
+        relevancyFeedback.setFieldNames(fieldNames);
+        relevancyFeedback.setMinDocFreq(1);
+        // as set by RFHelper for every request
+        relevancyFeedback.setBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setStreamBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setMm(RelevancyFeedback.DEFAULT_MM);
+        return relevancyFeedback;
+    }
+
+    private static Map<String, Float> weights(TermWeightMap terms) {
+        Map<String, Float> weights = new HashMap<String, Float>();
+        BytesRef term = new BytesRef();
+        for (int id = 0; id < terms.size(); id++) {
+            weights.put(terms.getTerm(id, term).utf8ToString(), terms.getWeight(id));
+        }
+        return weights;
+    }
+
+    @Test
+    public void retrieveTermsReadsTermVectorsAndStoredFields() throws Exception {
+        RelevancyFeedback relevancyFeedback = relevancyFeedback("body", "stored");
+        Map<String, TermWeightMap> terms = relevancyFeedback.retrieveTerms(0, new String[]{"body", "stored"}, null);
+
+        Map<String, Float> expected = new HashMap<String, Float>();
+        expected.put("java", 3.0f);
+        expected.put("solr", 1.0f);
+        expected.put("lucene", 1.0f);
+        assertEquals(expected, weights(terms.get("body")));
+        assertEquals(expected, weights(terms.get("stored")));
+    }
+
+    private static Set<String> words(RFQuery rfQuery) {
+        Set<String> words = new HashSet<String>();
+        for (RFTerm rfTerm : rfQuery.getRFTerms()) {
+            words.add(rfTerm.getWord());
+        }
+        return words;
+    }
+
+    @Test
+    public void contentStreamsAreOnlyReadUpToTheCharBudget() throws Exception {
+        StringBuilder text = new StringBuilder("java solr");
+        while (text.length() < RelevancyFeedback.DEFAULT_MAX_STREAM_CHARS) {
+            text.append(' ');
+        }
+        text.append(" lucene");
+
+        RelevancyFeedback relevancyFeedback = relevancyFeedback("body");
+        relevancyFeedback.setStreamBodyfieldNames(new String[]{"body"});
+        assertEquals(new HashSet<String>(Arrays.asList("java", "solr")),
+                words(relevancyFeedback.like(new StringReader(text.toString()))));
+
+        relevancyFeedback.setMaxStreamChars(Integer.MAX_VALUE);
+        assertEquals(new HashSet<String>(Arrays.asList("java", "solr", "lucene")),
+                words(relevancyFeedback.like(new StringReader(text.toString()))));
+    }
+
+    @Test
+    public void seedTermsCacheReturnsTheExtractedTerms() throws Exception {
+        RelevancyFeedback uncached = relevancyFeedback("body", "stored");
+        RelevancyFeedback cached = relevancyFeedback("body", "stored");
+        SeedTermsCache cache = new SeedTermsCache(1024 * 1024);
+        cached.setSeedTermsCache(cache);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int doc = 0; doc < DOCS.length; doc++) {
+                Map<String, TermWeightMap> expected = uncached.retrieveTerms(doc, new String[]{"body", "stored"}, null);
+                Map<String, TermWeightMap> actual = cached.retrieveTerms(doc, new String[]{"body", "stored"}, null);
+                assertEquals(weights(expected.get("body")), weights(actual.get("body")));
+                assertEquals(weights(expected.get("stored")), weights(actual.get("stored")));
+            }
+        }
+        assertEquals(2L * DOCS.length, cache.getStatistics().get("hits"));
+        assertEquals(2L * DOCS.length, cache.getStatistics().get("misses"));
+
+        RFQuery expectedQuery = uncached.like(Arrays.asList(0, 3));
+        RFQuery actualQuery = cached.like(Arrays.asList(0, 3));
+        assertEquals(expectedQuery.getOrQuery(), actualQuery.getOrQuery());
+    }
+
+    @Test
+    public void maxTermsPerSeedKeepsTheTopTermsOfEachSeed() throws Exception {
+        for (String field : new String[]{"body", "stored"}) {
+            RelevancyFeedback relevancyFeedback = relevancyFeedback(field);
+            relevancyFeedback.setMaxTermsPerSeed(1);
+            RFQuery rfQuery = relevancyFeedback.like(Arrays.asList(0, 1, 2));
+
+            Set<String> terms = new HashSet<String>();
+            for (RFTerm rfTerm : rfQuery.getRFTerms()) {
+                terms.add(rfTerm.getTerm().text());
+            }
+            assertEquals(new HashSet<String>(Arrays.asList("java", "spring", "django")), terms);
+        }
+    }
+
+    @Test
+    public void maxTermsPerSeedWithTheSeedTermsCache() throws Exception {
+        RelevancyFeedback uncached = relevancyFeedback("body");
+        uncached.setMaxTermsPerSeed(2);
+        RelevancyFeedback cached = relevancyFeedback("body");
+        cached.setMaxTermsPerSeed(2);
+        cached.setSeedTermsCache(new SeedTermsCache(1024 * 1024));
+
+        for (int pass = 0; pass < 2; pass++) {
+            assertEquals(uncached.like(Arrays.asList(0, 1, 4)).getOrQuery(), cached.like(Arrays.asList(0, 1, 4)).getOrQuery());
+        }
+    }
+
+    @Test
+    public void seedVectorHoldsEveryScoredTerm() throws Exception {
+        RelevancyFeedback unlimited = relevancyFeedback("body");
+        unlimited.setMaxQueryTermsPerField(0);
+        RFQuery allTerms = unlimited.like(Arrays.asList(0, 3));
+        assertNull(allTerms.getSeedVector());
+
+        RelevancyFeedback relevancyFeedback = relevancyFeedback("body");
+        relevancyFeedback.setMaxQueryTermsPerField(1);
+        relevancyFeedback.setKeepSeedVector(true);
+        RFQuery rfQuery = relevancyFeedback.like(Arrays.asList(0, 3));
+        assertEquals(1, rfQuery.getRFTerms().size());
+
+        // the same weights as if every term had been selected
+        SeedVector seedVector = rfQuery.getSeedVector();
+        double normSquared = 0.0;
+        assertEquals(3, allTerms.getRFTerms().size());
+        for (RFTerm rfTerm : allTerms.getRFTerms()) {
+            assertEquals(rfTerm.getWord(), rfTerm.getFinalScore(), seedVector.getWeight("body", rfTerm.getBytes()), 1e-6);
+            normSquared += rfTerm.getFinalScore() * rfTerm.getFinalScore();
+        }
+        assertEquals(normSquared, seedVector.getNormSquared(), 1e-6);
+        assertEquals(0.0f, seedVector.getWeight("body", new BytesRef("python")), 0.0f);
+    }
+
+    @Test
+    public void rescoringComparesToAllTheScoredTerms() throws Exception {
+        RelevancyFeedback relevancyFeedback = relevancyFeedback("body");
+        relevancyFeedback.setMaxQueryTermsPerField(1);
+        relevancyFeedback.setKeepSeedVector(true);
+        RFQuery rfQuery = relevancyFeedback.like(Arrays.asList(0));
+        int[] docs = {0, 1, 2, 3};
+        float[] similarities = relevancyFeedback.cosineSimilarity(rfQuery.getSeedVector(), docs);
+
+        // the seed has all its own terms, not only the one selected
+        assertEquals(1.0f, similarities[0], 1e-6);
+        assertEquals(0.0f, similarities[2], 0.0f);
+        assertTrue(similarities[3] > similarities[1]);
+        assertTrue(similarities[3] < 1.0f);
+
+        RelevancyFeedback cached = relevancyFeedback("body");
+        cached.setMaxQueryTermsPerField(1);
+        cached.setKeepSeedVector(true);
+        cached.setTermStatsCache(new TermStatsCache(1000));
+        for (int pass = 0; pass < 2; pass++) {
+            RFQuery cachedQuery = cached.like(Arrays.asList(0));
+            assertArrayEquals(similarities, cached.cosineSimilarity(cachedQuery.getSeedVector(), docs), 0.0f);
+        }
+    }
+}
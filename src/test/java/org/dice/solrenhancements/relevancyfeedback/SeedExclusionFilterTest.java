@@ -0,0 +1,51 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.QueryResultKey;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SeedExclusionFilterTest {
+
+    private static FixedBitSet seeds(int maxDoc, int... docs) {
+        FixedBitSet seeds = new FixedBitSet(maxDoc);
+        for (int doc : docs) {
+            seeds.set(doc);
+        }
+        return seeds;
+    }
+
+    @Test
+    public void filtersOverTheSameSeedsAreEqual() {
+        SeedExclusionFilter filter = new SeedExclusionFilter(seeds(1000, 3, 70, 999));
+        SeedExclusionFilter same = new SeedExclusionFilter(seeds(1000, 3, 70, 999));
+        assertEquals(filter, same);
+        assertEquals(filter.hashCode(), same.hashCode());
+
+        assertFalse(filter.equals(new SeedExclusionFilter(seeds(1000, 3, 70))));
+        assertFalse(filter.equals(new SeedExclusionFilter(seeds(1000, 3, 71, 999))));
+    }
+
+    @Test
+    public void repeatedRequestsHaveTheSameQueryResultKey() {
+        Query query = new TermQuery(new Term("body", "java"));
+        QueryResultKey key = new QueryResultKey(query,
+                Arrays.<Query>asList(new SeedExclusionFilter(seeds(1000, 3, 70))), null, 0);
+        QueryResultKey repeated = new QueryResultKey(query,
+                Arrays.<Query>asList(new SeedExclusionFilter(seeds(1000, 3, 70))), null, 0);
+        assertEquals(key, repeated);
+        assertEquals(key.hashCode(), repeated.hashCode());
+
+        QueryResultKey otherSeeds = new QueryResultKey(query,
+                Collections.<Query>singletonList(new SeedExclusionFilter(seeds(1000, 4, 70))), null, 0);
+        assertFalse(key.equals(otherSeeds));
+    }
+}
@@ -0,0 +1,168 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SeedTermsCacheTest {
+
+    private static TermWeightMap termWeights(String[] terms, float[] weights) {
+        TermWeightMap map = new TermWeightMap();
+        for (int i = 0; i < terms.length; i++) {
+            map.add(new BytesRef(terms[i]), weights[i]);
+        }
+        return map;
+    }
+
+    private static TermWeightMap roundTrip(TermWeightMap terms) throws Exception {
+        TermWeightMap read = new TermWeightMap();
+        SeedTermsCache.read(SeedTermsCache.encode(terms), read);
+        return read;
+    }
+
+    private static void assertSameTerms(TermWeightMap expected, TermWeightMap actual, float delta) {
+        assertEquals(expected.size(), actual.size());
+        BytesRef expectedTerm = new BytesRef();
+        BytesRef actualTerm = new BytesRef();
+        for (int id = 0; id < expected.size(); id++) {
+            assertEquals(expected.getTerm(id, expectedTerm), actual.getTerm(id, actualTerm));
+            assertEquals(expected.getWeight(id), actual.getWeight(id), delta);
+        }
+    }
+
+    @Test
+    public void integerWeightsRoundTripExactly() throws Exception {
+        TermWeightMap terms = termWeights(
+                new String[]{"java", "javascript", "jav", "solr", "", "solrcloud"},
+                new float[]{3, 1, 200, 0, 2, 70000});
+        assertSameTerms(terms, roundTrip(terms), 0.0f);
+    }
+
+    @Test
+    public void fractionalWeightsAreQuantizedToTheLargestWeight() throws Exception {
+        TermWeightMap terms = termWeights(
+                new String[]{"java", "javascript", "solr", "lucene"},
+                new float[]{0.25f, 1.7f, 0.0f, 3.14159f});
+        // 16 bits of the largest weight
+        assertSameTerms(terms, roundTrip(terms), 3.14159f / 65535);
+        assertEquals(3.14159f, roundTrip(terms).getWeight(3), 0.0f);
+    }
+
+    @Test
+    public void negativeWeightsRoundTripExactly() throws Exception {
+        TermWeightMap terms = termWeights(new String[]{"java", "solr"}, new float[]{-0.5f, 1.25f});
+        assertSameTerms(terms, roundTrip(terms), 0.0f);
+    }
+
+    @Test
+    public void emptyTermsRoundTrip() throws Exception {
+        assertEquals(0, roundTrip(new TermWeightMap()).size());
+    }
+
+    @Test
+    public void entriesAreEvictedWhenTheirSegmentCoreIsClosed() throws Exception {
+        Directory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        Document document = new Document();
+        document.add(new Field("body", "java solr", TextField.TYPE_STORED));
+        writer.addDocument(document);
+        writer.close();
+
+        SeedTermsCache cache = new SeedTermsCache(1024 * 1024);
+        DirectoryReader reader = DirectoryReader.open(directory);
+        LeafReader leaf = reader.leaves().get(0).reader();
+        TermWeightMap terms = termWeights(new String[]{"java", "solr"}, new float[]{1, 1});
+        cache.put(leaf, 0, "body", false, 1.0f, 5000, terms);
+
+        assertNotNull(cache.get(leaf, 0, "body", false, 1.0f, 5000));
+        assertNull(cache.get(leaf, 0, "body", false, 1.0f, 100));
+        assertNull(cache.get(leaf, 0, "title", false, 1.0f, 5000));
+        assertEquals(1L, cache.getStatistics().get("size"));
+
+        reader.close();
+        assertEquals(0L, cache.getStatistics().get("size"));
+        assertEquals(0L, cache.getStatistics().get("usedOffHeapBytes"));
+        // the page stays pooled for the next entries
+        assertEquals(1024L * 1024, cache.getStatistics().get("offHeapBytes"));
+        directory.close();
+    }
+
+    private static LeafReader singleDocReader(Directory directory) throws Exception {
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        writer.addDocument(new Document());
+        writer.close();
+        return DirectoryReader.open(directory).leaves().get(0).reader();
+    }
+
+    private static TermWeightMap termsOfLength(int numTerms, int doc) {
+        TermWeightMap terms = new TermWeightMap();
+        for (int i = 0; i < numTerms; i++) {
+            terms.add(new BytesRef(doc + "term" + i), i + 1);
+        }
+        return terms;
+    }
+
+    @Test
+    public void entriesAreReadBackFromTheOffHeapPages() throws Exception {
+        Directory directory = new RAMDirectory();
+        LeafReader leaf = singleDocReader(directory);
+        SeedTermsCache cache = new SeedTermsCache(64 * 1024, 4 * 1024);
+        for (int doc = 0; doc < 20; doc++) {
+            cache.put(leaf, doc, "body", false, 1.0f, 5000, termsOfLength(doc * 5, doc));
+        }
+        for (int doc = 0; doc < 20; doc++) {
+            TermWeightMap read = new TermWeightMap();
+            SeedTermsCache.read(cache.get(leaf, doc, "body", false, 1.0f, 5000), read);
+            assertSameTerms(termsOfLength(doc * 5, doc), read, 0.0f);
+        }
+        assertEquals(0L, cache.getStatistics().get("rejected"));
+        directory.close();
+    }
+
+    @Test
+    public void fullPagesAreReclaimedForOtherSizeClasses() throws Exception {
+        Directory directory = new RAMDirectory();
+        LeafReader leaf = singleDocReader(directory);
+        // 4 pages of 1KB
+        SeedTermsCache cache = new SeedTermsCache(4 * 1024, 1024);
+        for (int doc = 0; doc < 200; doc++) {
+            // cycle through the size classes, so every page is soon carved up for another one
+            TermWeightMap terms = termsOfLength(1 + doc % 40, doc);
+            cache.put(leaf, doc, "body", false, 1.0f, 5000, terms);
+
+            TermWeightMap read = new TermWeightMap();
+            SeedTermsCache.read(cache.get(leaf, doc, "body", false, 1.0f, 5000), read);
+            assertSameTerms(terms, read, 0.0f);
+            assertTrue((Long) cache.getStatistics().get("offHeapBytes") <= 4 * 1024);
+            assertTrue((Long) cache.getStatistics().get("usedOffHeapBytes") <= 4 * 1024);
+        }
+        assertEquals(0L, cache.getStatistics().get("rejected"));
+        directory.close();
+    }
+
+    @Test
+    public void entriesLargerThanAPageAreNotCached() throws Exception {
+        Directory directory = new RAMDirectory();
+        LeafReader leaf = singleDocReader(directory);
+        SeedTermsCache cache = new SeedTermsCache(4 * 1024, 1024);
+        cache.put(leaf, 0, "body", false, 1.0f, 5000, termsOfLength(1000, 0));
+        assertNull(cache.get(leaf, 0, "body", false, 1.0f, 5000));
+        assertEquals(1L, cache.getStatistics().get("rejected"));
+        assertEquals(0L, cache.getStatistics().get("size"));
+        directory.close();
+    }
+}
@@ -0,0 +1,69 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TermWeightMapTest {
+
+    @Test
+    public void addAccumulatesTheWeightOfATerm() {
+        TermWeightMap map = new TermWeightMap();
+        int java = map.add(new BytesRef("java"), 1.0f);
+        int solr = map.add(new BytesRef("solr"), 2.0f);
+        assertEquals(java, map.add(new BytesRef("java"), 0.5f));
+
+        assertEquals(2, map.size());
+        assertEquals(1.5f, map.getWeight(java), 0.0f);
+        assertEquals(2.0f, map.getWeight(solr), 0.0f);
+        assertEquals("solr", map.getTerm(solr, new BytesRef()).utf8ToString());
+    }
+
+    @Test
+    public void addAfterClear() {
+        TermWeightMap map = new TermWeightMap();
+        map.add(new BytesRef("java"), 1.0f);
+        map.add(new BytesRef("solr"), 2.0f);
+        map.clear();
+        assertEquals(0, map.size());
+
+        int id = map.add(new BytesRef("solr"), 3.0f);
+        assertEquals(1, map.size());
+        assertEquals(3.0f, map.getWeight(id), 0.0f);
+        assertEquals("solr", map.getTerm(id, new BytesRef()).utf8ToString());
+
+        map.clear();
+        id = map.add(new BytesRef("lucene"), 1.0f);
+        assertEquals(1.0f, map.getWeight(id), 0.0f);
+    }
+
+    @Test
+    public void addAllAddsTheWeightsOfEveryTerm() {
+        TermWeightMap map = new TermWeightMap();
+        map.add(new BytesRef("java"), 1.0f);
+        TermWeightMap other = new TermWeightMap();
+        other.add(new BytesRef("java"), 2.0f);
+        other.add(new BytesRef("solr"), 1.0f);
+        map.addAll(other);
+
+        assertEquals(2, map.size());
+        assertEquals(3.0f, map.getWeight(0), 0.0f);
+        assertEquals(1.0f, map.getWeight(1), 0.0f);
+    }
+
+    @Test
+    public void sortByTermSortsInTermOrder() {
+        TermWeightMap map = new TermWeightMap();
+        map.add(new BytesRef("solr"), 1.0f);
+        map.add(new BytesRef("java"), 1.0f);
+        map.add(new BytesRef("lucene"), 1.0f);
+        int[] ids = {0, 1, 2};
+        map.sortByTerm(ids, 0, ids.length);
+
+        BytesRef spare = new BytesRef();
+        assertEquals("java", map.getTerm(ids[0], spare).utf8ToString());
+        assertEquals("lucene", map.getTerm(ids[1], spare).utf8ToString());
+        assertEquals("solr", map.getTerm(ids[2], spare).utf8ToString());
+    }
+}
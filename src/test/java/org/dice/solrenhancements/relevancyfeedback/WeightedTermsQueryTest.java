@@ -0,0 +1,204 @@
+package org.dice.solrenhancements.relevancyfeedback;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.util.SolrPluginUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WeightedTermsQueryTest {
+
+    private static final int NUM_DOCS = 1000;
+    private static final int DOCS_PER_SEGMENT = 200;
+    private static final int WORDS_PER_DOC = 20;
+    private static final int VOCABULARY_SIZE = 200;
+
+    private static final String[] COMMON_TERMS = {"t0", "t1", "t2", "t3", "t5", "t8", "t13"};
+    private static final String[] RARE_TERMS = {"t150", "t170", "t199"};
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        IndexWriter writer = new IndexWriter(directory, config);
+        // skewed towards the low terms, so a few terms match most docs and the high ones only a few
+        Random random = new Random(42L);
+        for (int i = 0; i < NUM_DOCS; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int word = 0; word < WORDS_PER_DOC; word++) {
+                final double r = random.nextDouble();
+                text.append('t').append((int) (VOCABULARY_SIZE * r * r * r)).append(' ');
+            }
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+            document.add(new Field("body", text.toString(), TextField.TYPE_NOT_STORED));
+            writer.addDocument(document);
+            if ((i + 1) % DOCS_PER_SEGMENT == 0) {
+                writer.commit();
+            }
+        }
+        for (int i = 0; i < NUM_DOCS; i += 7) {
+            writer.deleteDocuments(new Term("id", Integer.toString(i)));
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new ClassicSimilarity());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    private static Term[] terms(String... texts) {
+        Term[] terms = new Term[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            terms[i] = new Term("body", texts[i]);
+        }
+        return terms;
+    }
+
+    private static float[] weights(int numTerms) {
+        float[] weights = new float[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            weights[i] = 0.5f + i;
+        }
+        return weights;
+    }
+
+    /**
+     * @return the largest number of postings of the terms per doc in any segment
+     */
+    private float maxPostingsPerDoc(Term[] terms) throws Exception {
+        float max = 0.0f;
+        for (LeafReaderContext context : reader.leaves()) {
+            long postings = 0;
+            for (Term term : terms) {
+                postings += context.reader().docFreq(term);
+            }
+            max = Math.max(max, postings / (float) context.reader().maxDoc());
+        }
+        return max;
+    }
+
+    private Map<Integer, Float> scores(Query query) throws Exception {
+        TopDocs topDocs = searcher.search(query, NUM_DOCS);
+        Map<Integer, Float> scores = new HashMap<Integer, Float>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            scores.put(scoreDoc.doc, scoreDoc.score);
+        }
+        return scores;
+    }
+
+    private void assertSameScoresAsBooleanQuery(Term[] terms, float[] weights, TermContext[] termContexts, int minShouldMatch) throws Exception {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < terms.length; i++) {
+            builder.add(new BoostQuery(new TermQuery(terms[i]), weights[i]), BooleanClause.Occur.SHOULD);
+        }
+        builder.setMinimumNumberShouldMatch(minShouldMatch);
+        Map<Integer, Float> expected = scores(builder.build());
+        Map<Integer, Float> actual = scores(new WeightedTermsQuery(terms, weights, termContexts, minShouldMatch));
+
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Integer, Float> entry : expected.entrySet()) {
+            assertEquals("doc " + entry.getKey(), entry.getValue(), actual.get(entry.getKey()), entry.getValue() * 1e-5f);
+        }
+    }
+
+    private void assertSameScoresAsBooleanQuery(Term[] terms, int minShouldMatch) throws Exception {
+        assertSameScoresAsBooleanQuery(terms, weights(terms.length), new TermContext[terms.length], minShouldMatch);
+    }
+
+    @Test
+    public void denseScoresMatchBooleanQuery() throws Exception {
+        Term[] terms = terms(COMMON_TERMS);
+        assertTrue(maxPostingsPerDoc(terms) > 0.25f);
+        assertSameScoresAsBooleanQuery(terms, 0);
+        assertSameScoresAsBooleanQuery(terms, 3);
+    }
+
+    @Test
+    public void sparseScoresMatchBooleanQuery() throws Exception {
+        Term[] terms = terms(RARE_TERMS);
+        assertTrue(maxPostingsPerDoc(terms) < 0.25f);
+        assertSameScoresAsBooleanQuery(terms, 0);
+        assertSameScoresAsBooleanQuery(terms, 2);
+    }
+
+    @Test
+    public void missingTermsStillCountTowardsTheCoord() throws Exception {
+        assertSameScoresAsBooleanQuery(terms("t0", "t150", "nosuchterm"), 0);
+    }
+
+    @Test
+    public void termContextsOfTheSearchersReaderAreUsed() throws Exception {
+        Term[] terms = terms("t1", "t170");
+        TermContext[] termContexts = new TermContext[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            termContexts[i] = TermContext.build(reader.getContext(), terms[i]);
+        }
+        assertSameScoresAsBooleanQuery(terms, weights(terms.length), termContexts, 0);
+    }
+
+    @Test
+    public void explainMatchesTheScore() throws Exception {
+        Term[] terms = terms("t0", "t3", "t150");
+        Query query = new WeightedTermsQuery(terms, weights(terms.length), new TermContext[terms.length], 0);
+        for (ScoreDoc scoreDoc : searcher.search(query, 20).scoreDocs) {
+            assertEquals(scoreDoc.score, searcher.explain(query, scoreDoc.doc).getValue(), scoreDoc.score * 1e-5f);
+        }
+    }
+
+    @Test
+    public void minShouldMatchIsCalculatedAsForABooleanQuery() {
+        String[] specs = {"1", "3", "-2", "75%", "-25%", "3<90%", "2<-25% 9<-3", "100%"};
+        for (int numClauses = 1; numClauses <= 12; numClauses++) {
+            for (String spec : specs) {
+                BooleanQuery.Builder builder = new BooleanQuery.Builder();
+                for (int i = 0; i < numClauses; i++) {
+                    builder.add(new TermQuery(new Term("body", "t" + i)), BooleanClause.Occur.SHOULD);
+                }
+                SolrPluginUtils.setMinShouldMatch(builder, spec);
+                assertEquals(spec + " of " + numClauses, builder.build().getMinimumNumberShouldMatch(),
+                        RFQuery.calculateMinShouldMatch(numClauses, spec));
+            }
+        }
+    }
+}
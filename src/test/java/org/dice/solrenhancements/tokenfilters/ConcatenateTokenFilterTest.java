@@ -0,0 +1,230 @@
+package org.dice.solrenhancements.tokenfilters;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.shingle.ShingleFilter;
+import org.apache.lucene.analysis.synonym.SynonymFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.CharsRef;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcatenateTokenFilterTest {
+
+    private static final String[] TEXTS = {
+            "senior java developer",
+            "java developer nyc",
+            "sr java dev in nyc",
+            "developer",
+            "plain title without synonyms",
+            "",
+    };
+
+    private static SynonymMap synonyms;
+
+    @BeforeClass
+    public static void buildSynonyms() throws IOException {
+        SynonymMap.Builder builder = new SynonymMap.Builder(true);
+        addSynonyms(builder, "senior", "sr", "lead");
+        addSynonyms(builder, "sr", "senior");
+        addSynonyms(builder, "java", "j2ee", "jvm");
+        addSynonyms(builder, "developer", "dev", "engineer", "programmer");
+        addSynonyms(builder, "dev", "developer");
+        addSynonyms(builder, "nyc", "newyork");
+        synonyms = builder.build();
+    }
+
+    private static void addSynonyms(SynonymMap.Builder builder, String word, String... synonyms) {
+        for (String synonym : synonyms) {
+            builder.add(new CharsRef(word), new CharsRef(synonym), true);
+        }
+    }
+
+    /**
+     * @return the term, type, position increment and offsets of each token the stream emits
+     */
+    private static List<String> tokens(TokenStream stream) throws IOException {
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        TypeAttribute typeAtt = stream.addAttribute(TypeAttribute.class);
+        PositionIncrementAttribute posIncrAtt = stream.addAttribute(PositionIncrementAttribute.class);
+        OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+        List<String> tokens = new ArrayList<String>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens.add(termAtt.toString() + "/" + typeAtt.type() + "/" + posIncrAtt.getPositionIncrement()
+                    + "/" + offsetAtt.startOffset() + "-" + offsetAtt.endOffset());
+        }
+        stream.end();
+        stream.close();
+        return tokens;
+    }
+
+    private static TokenStream synonymStacked(Tokenizer tokenizer, String text) {
+        tokenizer.setReader(new StringReader(text));
+        return new SynonymFilter(tokenizer, synonyms, true);
+    }
+
+    private static List<String> baseline(String text) throws IOException {
+        return tokens(new BaselineConcatenateTokenFilter(synonymStacked(new WhitespaceTokenizer(), text)));
+    }
+
+    private static ConcatenateTokenFilterFactory factory(String... keyValues) {
+        Map<String, String> args = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            args.put(keyValues[i], keyValues[i + 1]);
+        }
+        return new ConcatenateTokenFilterFactory(args);
+    }
+
+    @Test
+    public void samePhrasesAsTheBaseline() throws Exception {
+        // one filter reused for every text
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream filter = factory().create(synonymStacked(tokenizer, ""));
+        for (String text : TEXTS) {
+            tokenizer.setReader(new StringReader(text));
+            assertEquals(text, baseline(text), tokens(filter));
+        }
+    }
+
+    @Test
+    public void phrasesAreTheCrossProductLastPositionFastest() throws Exception {
+        List<String> phrases = tokens(factory().create(synonymStacked(new WhitespaceTokenizer(), "java developer nyc")));
+        // java, j2ee, jvm x developer, dev, engineer, programmer x nyc, newyork
+        assertEquals(24, phrases.size());
+        assertEquals("java developer nyc/" + ShingleFilter.DEFAULT_TOKEN_TYPE + "/1/0-0", phrases.get(0));
+        assertEquals("java developer newyork/" + ShingleFilter.DEFAULT_TOKEN_TYPE + "/1/0-0", phrases.get(1));
+        assertEquals("java dev nyc/" + ShingleFilter.DEFAULT_TOKEN_TYPE + "/1/0-0", phrases.get(2));
+        assertEquals("jvm programmer newyork/" + ShingleFilter.DEFAULT_TOKEN_TYPE + "/1/0-0", phrases.get(23));
+    }
+
+    @Test
+    public void maxPhrasesCutsOffTheCombinations() throws Exception {
+        for (String text : TEXTS) {
+            List<String> all = baseline(text);
+            for (int maxPhrases : new int[]{1, 2, 5, 24, 100}) {
+                List<String> capped = tokens(factory("maxPhrases", Integer.toString(maxPhrases))
+                        .create(synonymStacked(new WhitespaceTokenizer(), text)));
+                assertEquals(text, all.subList(0, Math.min(maxPhrases, all.size())), capped);
+            }
+        }
+    }
+
+    @Test
+    public void phrasesAreJoinedWithTheSeparator() throws Exception {
+        for (String separator : new String[]{"_", " | ", ""}) {
+            for (String text : TEXTS) {
+                List<String> expected = new ArrayList<String>();
+                for (String token : baseline(text)) {
+                    // the baseline always joined with a space, and none of the terms has one
+                    expected.add(token.replace(" ", separator));
+                }
+                List<String> actual = tokens(factory("separator", separator)
+                        .create(synonymStacked(new WhitespaceTokenizer(), text)));
+                assertEquals(separator + ":" + text, expected, actual);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxPhrasesMustBePositive() {
+        factory("maxPhrases", "0");
+    }
+
+    /**
+     * The filter as it was before the phrases were enumerated lazily, to check it emits the same
+     */
+    private static final class BaselineConcatenateTokenFilter extends TokenFilter {
+        private LinkedList<List<String>> words = new LinkedList<List<String>>();
+        private LinkedList<String> phrases = new LinkedList<String>();
+        private boolean concat = false;
+        private AttributeSource.State current;
+
+        private final CharTermAttribute termAttr = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute posIncrAttr = addAttribute(PositionIncrementAttribute.class);
+        private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+        BaselineConcatenateTokenFilter(TokenStream input) {
+            super(input);
+            addAttribute(OffsetAttribute.class);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            this.words = new LinkedList<List<String>>();
+            this.phrases = new LinkedList<String>();
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            while (input.incrementToken()) {
+                String term = new String(termAttr.buffer(), 0, termAttr.length());
+                List<String> word = posIncrAttr.getPositionIncrement() > 0 ? new ArrayList<String>() : words.removeLast();
+                word.add(term);
+                words.add(word);
+            }
+            if (!concat) {
+                makePhrases(words, phrases, 0);
+                concat = true;
+            }
+            while (phrases.size() > 0) {
+                String phrase = phrases.removeFirst();
+                restoreState(current);
+                clearAttributes();
+
+                termAttr.setEmpty();
+                termAttr.append(phrase);
+                termAttr.setLength(phrase.length());
+                typeAtt.setType(ShingleFilter.DEFAULT_TOKEN_TYPE);
+
+                current = captureState();
+                return true;
+            }
+
+            concat = false;
+            return false;
+        }
+
+        private void makePhrases(List<List<String>> words, List<String> phrases, int currPos) {
+            if (currPos == words.size()) {
+                return;
+            }
+            if (phrases.size() == 0) {
+                phrases.addAll(words.get(currPos));
+            } else {
+                List<String> newPhrases = new ArrayList<String>();
+                for (String phrase : phrases) {
+                    for (String word : words.get(currPos)) {
+                        newPhrases.add(StringUtils.join(new String[]{phrase, word}, " "));
+                    }
+                }
+                phrases.clear();
+                phrases.addAll(newPhrases);
+            }
+            makePhrases(words, phrases, currPos + 1);
+        }
+
+        @Override
+        public void end() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.dice.solrenhancements.tokenfilters;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MeanPayloadTokenFilterTest {
+
+    /**
+     * @return the terms and payloads the stream emits, in order
+     */
+    private static List<String> tokens(TokenStream stream) throws IOException {
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+        List<String> tokens = new ArrayList<String>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens.add(termAtt.toString() + "|" + payloadAtt.getPayload());
+        }
+        stream.end();
+        stream.close();
+        return tokens;
+    }
+
+    private static TokenStream delimited(Tokenizer tokenizer, String text) {
+        tokenizer.setReader(new StringReader(text));
+        return new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder());
+    }
+
+    /**
+     * @return the n strings of "Aa" and "BB" pairs, which all have the same String.hashCode()
+     */
+    private static List<String> collidingTerms(int pairs) {
+        List<String> terms = new ArrayList<String>();
+        terms.add("");
+        for (int i = 0; i < pairs; i++) {
+            List<String> longer = new ArrayList<String>();
+            for (String term : terms) {
+                longer.add(term + "Aa");
+                longer.add(term + "BB");
+            }
+            terms = longer;
+        }
+        return terms;
+    }
+
+    /**
+     * @return a stream of the terms, each repeated a few times with random payloads, some of them missing
+     */
+    private static String text(List<String> terms, Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < terms.size() * 3; i++) {
+            text.append(terms.get(random.nextInt(terms.size())));
+            if (random.nextInt(10) > 0) {
+                text.append('|').append(random.nextFloat() * 10);
+            }
+            text.append(' ');
+        }
+        return text.toString();
+    }
+
+    private static List<String> randomTerms(int numTerms, Random random) {
+        List<String> terms = new ArrayList<String>();
+        for (int i = 0; i < numTerms; i++) {
+            terms.add(Integer.toString(random.nextInt(numTerms * 4), Character.MAX_RADIX));
+        }
+        return terms;
+    }
+
+    /**
+     * Checks the filter against the baseline implementation, with one filter reused for all the texts
+     */
+    private static void assertSameAsBaseline(List<String> texts) throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        MeanPayloadTokenFilter filter = new MeanPayloadTokenFilter(delimited(tokenizer, ""));
+        for (String text : texts) {
+            List<String> expected = tokens(new BaselineMeanPayloadTokenFilter(delimited(new WhitespaceTokenizer(), text)));
+            tokenizer.setReader(new StringReader(text));
+            assertEquals(expected, tokens(filter));
+        }
+    }
+
+    @Test
+    public void sameTokensAndPayloadsAsTheBaseline() throws Exception {
+        Random random = new Random(11L);
+        List<String> texts = new ArrayList<String>();
+        for (int numTerms : new int[]{1, 5, 12, 13, 40, 100, 700, 3000}) {
+            texts.add(text(randomTerms(numTerms, random), random));
+        }
+        texts.add("");
+        texts.add("nopayload other");
+        assertSameAsBaseline(texts);
+    }
+
+    @Test
+    public void sameOrderAsTheBaselineWithCollidingTerms() throws Exception {
+        Random random = new Random(13L);
+        List<String> texts = new ArrayList<String>();
+        // 8 terms in one bucket stay a list, 9 resize a small map, and past 64 buckets the bucket is a tree
+        for (int pairs = 3; pairs <= 6; pairs++) {
+            List<String> terms = collidingTerms(pairs);
+            texts.add(text(terms, random));
+            for (int numOthers : new int[]{4, 60, 500}) {
+                List<String> mixed = new ArrayList<String>(terms);
+                mixed.addAll(randomTerms(numOthers, random));
+                texts.add(text(mixed, random));
+            }
+        }
+        assertSameAsBaseline(texts);
+    }
+
+    @Test
+    public void payloadsAreTheNormalizedMeans() throws Exception {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = new MeanPayloadTokenFilter(delimited(tokenizer, "java|1 solr|3 java|3 nopayload"));
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+        Map<String, Float> payloads = new HashMap<String, Float>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            BytesRef payload = payloadAtt.getPayload();
+            payloads.put(termAtt.toString(), PayloadHelper.decodeFloat(payload.bytes, payload.offset));
+        }
+        stream.close();
+        assertEquals(2, payloads.size());
+        // means of 2 and 3
+        assertEquals(2 / Math.sqrt(13), payloads.get("java"), 1e-6);
+        assertEquals(3 / Math.sqrt(13), payloads.get("solr"), 1e-6);
+        assertTrue(!payloads.containsKey("nopayload"));
+    }
+
+    /**
+     * The filter as it was before it was rewritten without the per-token allocation, to check it emits the same
+     */
+    private static final class BaselineMeanPayloadTokenFilter extends TokenFilter {
+        private List<Tuple<String, Float>> averagePayloadQueue = new ArrayList<Tuple<String, Float>>();
+        private AttributeSource.State current;
+        private boolean processedPayloads = false;
+
+        BaselineMeanPayloadTokenFilter(TokenStream input) {
+            super(input);
+            addAttribute(CharTermAttribute.class);
+            addAttribute(PayloadAttribute.class);
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (!processedPayloads) {
+                final Map<String, Float> totalPayload = new HashMap<String, Float>();
+                final Map<String, Integer> tokenCount = new HashMap<String, Integer>();
+
+                while (input.incrementToken()) {
+                    CharTermAttribute termAtt = this.getAttribute(CharTermAttribute.class);
+                    PayloadAttribute payloadAtt = this.getAttribute(PayloadAttribute.class);
+                    final BytesRef payload = payloadAtt.getPayload();
+                    if (payload == null)
+                        continue;
+
+                    float payloadValue = PayloadHelper.decodeFloat(payload.bytes, payload.offset);
+                    final String term = termAtt.toString();
+                    if (totalPayload.containsKey(term)) {
+                        totalPayload.put(term, totalPayload.get(term) + payloadValue);
+                        tokenCount.put(term, tokenCount.get(term) + 1);
+                    } else {
+                        totalPayload.put(term, payloadValue);
+                        tokenCount.put(term, 1);
+                    }
+                }
+
+                final Map<String, Float> averagePayload = new HashMap<String, Float>();
+                float vectorLengthSq = 0.0f;
+                for (String term : totalPayload.keySet()) {
+                    float mean = totalPayload.get(term) / tokenCount.get(term);
+                    vectorLengthSq += mean * mean;
+                    averagePayload.put(term, mean);
+                }
+
+                double vectorLength = Math.sqrt(vectorLengthSq);
+                for (String term : averagePayload.keySet()) {
+                    float normedValue = (float) (averagePayload.get(term) / vectorLength);
+                    this.averagePayloadQueue.add(new Tuple<String, Float>(term, normedValue));
+                }
+                this.processedPayloads = true;
+            }
+
+            if (false == this.averagePayloadQueue.isEmpty()) {
+                restoreState(current);
+                clearAttributes();
+
+                Tuple<String, Float> tuple = this.averagePayloadQueue.remove(0);
+                setAttributes(tuple.x, tuple.y);
+                current = captureState();
+                return true;
+            }
+            return false;
+        }
+
+        private void setAttributes(String token, float payload) {
+            CharTermAttribute termAtt = this.getAttribute(CharTermAttribute.class);
+            termAtt.setEmpty();
+            termAtt.append(token);
+            termAtt.setLength(token.length());
+
+            PayloadAttribute payloadAtt = this.getAttribute(PayloadAttribute.class);
+            byte[] bytes = PayloadHelper.encodeFloat(payload);
+            payloadAtt.setPayload(new BytesRef(bytes));
+        }
+
+        @Override
+        public void reset() throws IOException {
+            this.averagePayloadQueue.clear();
+            this.processedPayloads = false;
+            super.reset();
+        }
+    }
+
+    private static final class Tuple<X, Y> {
+        private final X x;
+        private final Y y;
+
+        private Tuple(X x, Y y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
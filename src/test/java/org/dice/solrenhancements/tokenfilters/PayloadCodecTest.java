@@ -0,0 +1,137 @@
+package org.dice.solrenhancements.tokenfilters;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PayloadCodecTest {
+
+    private static float roundTrip(PayloadCodec codec, float weight) {
+        byte[] bytes = new byte[codec.length() + 2];
+        assertEquals(codec.length(), codec.encode(weight, bytes, 1));
+        return PayloadCodec.decode(new BytesRef(bytes, 1, codec.length()), codec.getScale());
+    }
+
+    @Test
+    public void floatsAreExact() {
+        assertEquals(4, PayloadCodec.FLOAT.length());
+        for (float weight : new float[]{0.0f, 0.123456f, 1.0f, 17.5f, -3.0f}) {
+            assertEquals(weight, roundTrip(PayloadCodec.FLOAT, weight), 0.0f);
+        }
+    }
+
+    @Test
+    public void floatsAreWrittenAsPayloadHelperDoes() {
+        byte[] bytes = new byte[4];
+        PayloadCodec.FLOAT.encode(0.75f, bytes, 0);
+        assertEquals(0.75f, PayloadHelper.decodeFloat(bytes), 0.0f);
+    }
+
+    @Test
+    public void bytesAreQuantizedToTheScale() {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.BYTE, 1.0f);
+        assertEquals(1, codec.length());
+        for (int i = 0; i <= 100; i++) {
+            final float weight = i / 100.0f;
+            assertEquals(weight, roundTrip(codec, weight), 0.5f / 0xFF + 1e-6f);
+        }
+        assertEquals(0.0f, roundTrip(codec, 0.0f), 0.0f);
+        assertEquals(1.0f, roundTrip(codec, 1.0f), 0.0f);
+    }
+
+    @Test
+    public void shortsAreQuantizedToTheScale() {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.SHORT, 10.0f);
+        assertEquals(2, codec.length());
+        for (int i = 0; i <= 100; i++) {
+            final float weight = i / 10.0f;
+            assertEquals(weight, roundTrip(codec, weight), 0.5f * 10.0f / 0xFFFF + 1e-6f);
+        }
+        assertEquals(10.0f, roundTrip(codec, 10.0f), 0.0f);
+    }
+
+    @Test
+    public void quantizedWeightsOutsideTheScaleAreClamped() {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.BYTE, 2.0f);
+        assertEquals(2.0f, roundTrip(codec, 5.0f), 0.0f);
+        assertEquals(0.0f, roundTrip(codec, -1.0f), 0.0f);
+    }
+
+    @Test
+    public void scaleMustBePositive() {
+        for (float scale : new float[]{0.0f, -1.0f, Float.NaN}) {
+            try {
+                new PayloadCodec(PayloadCodec.Encoding.BYTE, scale);
+                fail("scale " + scale);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void readsTheFactoryArguments() {
+        assertSame(PayloadCodec.FLOAT, PayloadCodec.fromArgs(null, null));
+        PayloadCodec codec = PayloadCodec.fromArgs(" Short ", null);
+        assertEquals(2, codec.length());
+        assertEquals(PayloadCodec.DEFAULT_SCALE, codec.getScale(), 0.0f);
+        codec = PayloadCodec.fromArgs("byte", "4");
+        assertEquals(1, codec.length());
+        assertEquals(4.0f, codec.getScale(), 0.0f);
+        try {
+            PayloadCodec.fromArgs("double", null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * @return the payloads of MeanPayloadTokenFilter over the text, by term
+     */
+    private static Map<String, BytesRef> meanPayloads(String text, Map<String, String> args) throws Exception {
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        TokenStream stream = new MeanPayloadTokenFilterFactory(args)
+                .create(new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder()));
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+        Map<String, BytesRef> payloads = new HashMap<String, BytesRef>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            payloads.put(termAtt.toString(), BytesRef.deepCopyOf(payloadAtt.getPayload()));
+        }
+        stream.end();
+        stream.close();
+        return payloads;
+    }
+
+    @Test
+    public void meanPayloadTokenFilterQuantizesThePayloads() throws Exception {
+        final String text = "java|0.9 solr|0.3 java|0.5 lucene|0.1";
+        Map<String, BytesRef> floats = meanPayloads(text, new HashMap<String, String>());
+        Map<String, String> args = new HashMap<String, String>();
+        args.put("payloadEncoding", "byte");
+        Map<String, BytesRef> bytes = meanPayloads(text, args);
+
+        assertEquals(floats.keySet(), bytes.keySet());
+        for (Map.Entry<String, BytesRef> entry : floats.entrySet()) {
+            assertEquals(4, entry.getValue().length);
+            assertEquals(1, bytes.get(entry.getKey()).length);
+            assertEquals(entry.getKey(), PayloadCodec.decode(entry.getValue(), PayloadCodec.DEFAULT_SCALE),
+                    PayloadCodec.decode(bytes.get(entry.getKey()), PayloadCodec.DEFAULT_SCALE), 0.5f / 0xFF + 1e-6f);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.dice.solrenhancements.tokenfilters;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.dice.solrenhancements.relevancyfeedback.RFQuery;
+import org.dice.solrenhancements.relevancyfeedback.RelevancyFeedback;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopPayloadsTokenFilterTest {
+
+    private static final int NUM_DOCS = 1000;
+    private static final int NUM_TOPICS = 20;
+    private static final int SKILLS_PER_TOPIC = 30;
+    private static final int TOPIC_SKILLS_PER_DOC = 3;
+    private static final int NOISE_SKILLS = 2000;
+    private static final int NOISE_SKILLS_PER_DOC = 40;
+    private static final int MAX_TOKENS = 10;
+    private static final int NUM_SEEDS = 50;
+    private static final int NUM_HITS = 10;
+
+    /**
+     * @return the terms and decoded payloads the filter created by the factory emits for the input
+     */
+    private static List<Object[]> filter(TopPayloadsTokenFilterFactory factory, TokenStream input) throws Exception {
+        TokenStream stream = factory.create(input);
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+        List<Object[]> tokens = new ArrayList<Object[]>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens.add(new Object[]{termAtt.toString(), PayloadCodec.decode(payloadAtt.getPayload(), PayloadCodec.DEFAULT_SCALE)});
+        }
+        stream.end();
+        stream.close();
+        return tokens;
+    }
+
+    private static TokenStream delimited(String text) {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        return new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder());
+    }
+
+    private static TopPayloadsTokenFilterFactory factory(String... keyValues) {
+        Map<String, String> args = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            args.put(keyValues[i], keyValues[i + 1]);
+        }
+        return new TopPayloadsTokenFilterFactory(args);
+    }
+
+    private static List<String> terms(List<Object[]> tokens) {
+        List<String> terms = new ArrayList<String>();
+        for (Object[] token : tokens) {
+            terms.add((String) token[0]);
+        }
+        return terms;
+    }
+
+    private static float vectorLength(List<Object[]> tokens) {
+        double lengthSq = 0.0;
+        for (Object[] token : tokens) {
+            lengthSq += (Float) token[1] * (Float) token[1];
+        }
+        return (float) Math.sqrt(lengthSq);
+    }
+
+    @Test
+    public void keepsTheTopTokensInInputOrder() throws Exception {
+        List<Object[]> tokens = filter(factory("maxTokens", "3"), delimited("a|0.1 b|0.9 c|0.05 d|0.4 e|0.6"));
+        assertEquals(Arrays.asList("b", "d", "e"), terms(tokens));
+        assertEquals(1.0f, vectorLength(tokens), 1e-6f);
+        // the kept weights keep their proportions
+        assertEquals(0.9f / 0.4f, (Float) tokens.get(0)[1] / (Float) tokens.get(1)[1], 1e-5f);
+    }
+
+    @Test
+    public void keepsTheTokensAboveTheMinWeight() throws Exception {
+        List<Object[]> tokens = filter(factory("minWeight", "0.3"), delimited("a|0.1 b|0.9 c|0.3 d|0.29"));
+        assertEquals(Arrays.asList("b", "c"), terms(tokens));
+        assertEquals(1.0f, vectorLength(tokens), 1e-6f);
+    }
+
+    @Test
+    public void tiesAtTheCutOffKeepTheEarlierToken() throws Exception {
+        assertEquals(Arrays.asList("a", "b"), terms(filter(factory("maxTokens", "2"), delimited("a|0.5 b|0.5 c|0.5"))));
+    }
+
+    @Test
+    public void dropsTokensWithoutPayloads() throws Exception {
+        assertEquals(Arrays.asList("a", "c"), terms(filter(factory(), delimited("a|0.5 b c|0.2"))));
+    }
+
+    @Test
+    public void keepsEverythingByDefault() throws Exception {
+        List<Object[]> tokens = filter(factory(), delimited("a|0.6 b|0.8"));
+        assertEquals(Arrays.asList("a", "b"), terms(tokens));
+        assertEquals(0.6f, (Float) tokens.get(0)[1], 1e-6f);
+        assertEquals(0.8f, (Float) tokens.get(1)[1], 1e-6f);
+    }
+
+    @Test
+    public void writesQuantizedPayloads() throws Exception {
+        TokenStream stream = factory("maxTokens", "2", "payloadEncoding", "byte").create(delimited("a|0.6 b|0.8 c|0.1"));
+        PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+        stream.reset();
+        int numTokens = 0;
+        while (stream.incrementToken()) {
+            assertEquals(1, payloadAtt.getPayload().length);
+            numTokens++;
+        }
+        stream.end();
+        stream.close();
+        assertEquals(2, numTokens);
+    }
+
+    @Test
+    public void isReusable() throws Exception {
+        final Analyzer analyzer = pruningAnalyzer(2);
+        for (int i = 0; i < 3; i++) {
+            TokenStream stream = analyzer.tokenStream("skills", i % 2 == 0 ? "a|0.1 b|0.9 c|0.5" : "x|0.3 y|0.2 z|0.7 w|0.1");
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            List<String> terms = new ArrayList<String>();
+            stream.reset();
+            while (stream.incrementToken()) {
+                terms.add(termAtt.toString());
+            }
+            stream.end();
+            stream.close();
+            assertEquals(i % 2 == 0 ? Arrays.asList("b", "c") : Arrays.asList("x", "z"), terms);
+        }
+        analyzer.close();
+    }
+
+    /**
+     * @return an analyzer of delimited float payloads through MeanPayloadTokenFilter, then TopPayloadsTokenFilter
+     * keeping maxTokens tokens, or not when maxTokens is negative
+     */
+    private static Analyzer pruningAnalyzer(final int maxTokens) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                final Tokenizer tokenizer = new WhitespaceTokenizer();
+                TokenStream stream = new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder());
+                stream = new MeanPayloadTokenFilterFactory(new HashMap<String, String>()).create(stream);
+                if (maxTokens >= 0) {
+                    stream = factory("maxTokens", Integer.toString(maxTokens)).create(stream);
+                }
+                return new TokenStreamComponents(tokenizer, stream);
+            }
+        };
+    }
+
+    /**
+     * Evaluates the pruning on a synthetic corpus of payload weighted skills. Each doc has a topic, a few of the
+     * topic's skills with high weights and a long tail of random skills with low weights. The skills are
+     * indexed as is and pruned to the top 10, and an RF query from each of a sample of seed docs should find docs of
+     * the seed's topic as well with the pruned field, from a fraction of the postings.
+     */
+    @Test
+    public void pruningKeepsTheRelevancyFeedbackQuality() throws Exception {
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+        fieldAnalyzers.put("skills", pruningAnalyzer(-1));
+        fieldAnalyzers.put("topskills", pruningAnalyzer(MAX_TOKENS));
+        Analyzer analyzer = new PerFieldAnalyzerWrapper(pruningAnalyzer(-1), fieldAnalyzers);
+
+        FieldType withPayloadTermVectors = new FieldType(TextField.TYPE_NOT_STORED);
+        withPayloadTermVectors.setStoreTermVectors(true);
+        withPayloadTermVectors.setStoreTermVectorPositions(true);
+        withPayloadTermVectors.setStoreTermVectorPayloads(true);
+        withPayloadTermVectors.freeze();
+
+        Random random = new Random(42L);
+        Directory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+        for (int i = 0; i < NUM_DOCS; i++) {
+            final int topic = i % NUM_TOPICS;
+            StringBuilder text = new StringBuilder();
+            for (int skill = 0; skill < TOPIC_SKILLS_PER_DOC; skill++) {
+                text.append("topic").append(topic).append('_').append(random.nextInt(SKILLS_PER_TOPIC))
+                        .append('|').append(0.5f + 0.5f * random.nextFloat()).append(' ');
+            }
+            for (int skill = 0; skill < NOISE_SKILLS_PER_DOC; skill++) {
+                text.append("noise").append(random.nextInt(NOISE_SKILLS))
+                        .append('|').append(0.4f * random.nextFloat()).append(' ');
+            }
+            Document document = new Document();
+            document.add(new StoredField("topic", topic));
+            document.add(new Field("skills", text.toString(), withPayloadTermVectors));
+            document.add(new Field("topskills", text.toString(), withPayloadTermVectors));
+            writer.addDocument(document);
+        }
+        writer.close();
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            final long postings = MultiFields.getTerms(reader, "skills").getSumDocFreq();
+            final long prunedPostings = MultiFields.getTerms(reader, "topskills").getSumDocFreq();
+            assertTrue(prunedPostings <= MAX_TOKENS * NUM_DOCS);
+            assertTrue(prunedPostings * 3 < postings);
+
+            IndexSearcher searcher = new IndexSearcher(reader);
+            final float precision = topicPrecision(reader, searcher, analyzer, "skills");
+            final float prunedPrecision = topicPrecision(reader, searcher, analyzer, "topskills");
+            assertTrue("precision " + precision, precision > 0.8f);
+            assertTrue("pruned precision " + prunedPrecision + " against " + precision, prunedPrecision >= precision - 0.02f);
+        } finally {
+            reader.close();
+            directory.close();
+        }
+    }
+
+    /**
+     * @return the mean fraction of the top hits of an RF query on the field from a seed doc that share its topic
+     */
+    private static float topicPrecision(DirectoryReader reader, IndexSearcher searcher, Analyzer analyzer,
+                                        String field) throws Exception {
+        RelevancyFeedback relevancyFeedback = new RelevancyFeedback(reader);
+        relevancyFeedback.setAnalyzer(analyzer);
+        relevancyFeedback.setFieldNames(new String[]{field});
+        relevancyFeedback.setPayloadFields(new String[]{field});
+        relevancyFeedback.setMinDocFreq(1);
+        // the term weights of a payload field are its payloads, all below 1
+        relevancyFeedback.setMinTermFreq(0);
+        relevancyFeedback.setBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setStreamBoostFields(new HashMap<String, Float>());
+        relevancyFeedback.setMm(RelevancyFeedback.DEFAULT_MM);
+
+        // the same seeds for each field
+        Random random = new Random(7L);
+        int relevant = 0;
+        int hits = 0;
+        for (int i = 0; i < NUM_SEEDS; i++) {
+            final int seed = random.nextInt(NUM_DOCS);
+            final int topic = topic(reader, seed);
+            RFQuery rfQuery = relevancyFeedback.like(Arrays.asList(seed));
+            int seedHits = 0;
+            for (ScoreDoc scoreDoc : searcher.search(rfQuery.getOrQuery(), NUM_HITS + 1).scoreDocs) {
+                if (scoreDoc.doc == seed || seedHits == NUM_HITS) {
+                    continue;
+                }
+                if (topic(reader, scoreDoc.doc) == topic) {
+                    relevant++;
+                }
+                seedHits++;
+            }
+            hits += seedHits;
+        }
+        return relevant / (float) hits;
+    }
+
+    private static int topic(DirectoryReader reader, int doc) throws Exception {
+        return reader.document(doc).getField("topic").numericValue().intValue();
+    }
+}